@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.Json;
+import uk.trainwatch.util.config.Configuration;
+import uk.trainwatch.util.config.ConfigurationService;
+
+/**
+ * A small pool of daemon threads for work that must not delay startup or a request, e.g. the initial reload of a service.
+ * <p>
+ * The pool is shut down with the application so nothing is left running, and any failure of a task is logged and counted rather than lost.
+ * <p>
+ * Configuration: An optional JsonObject called "executor" within the "metoffice" configuration with the following parameters:
+ * <table>
+ * <tr><th>Parameter</th><th>Type</th><th>Required</th><th>Purpose</th></tr>
+ * <tr><td>threads</td><td>Long</td><td>No (2)</td><td>Number of threads</td></tr>
+ * </table>
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class BackgroundExecutor
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final long DEFAULT_THREADS = 2;
+
+    @FunctionalInterface
+    public static interface Task
+    {
+
+        void run()
+                throws Exception;
+    }
+
+    @Inject
+    private ConfigurationService configurationService;
+
+    private ScheduledThreadPoolExecutor executor;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @PostConstruct
+    void start()
+    {
+        Configuration config = configurationService.getConfiguration( "metoffice" ).getConfiguration( "executor" );
+        executor = new ScheduledThreadPoolExecutor( (int) config.getLong( "threads", DEFAULT_THREADS ), r -> {
+                                                    Thread t = new Thread( r, "metoffice-" + threadCount.incrementAndGet() );
+                                                    t.setDaemon( true );
+                                                    return t;
+                                                } );
+    }
+
+    @PreDestroy
+    void stop()
+    {
+        executor.shutdown();
+        try {
+            if( !executor.awaitTermination( 5, TimeUnit.SECONDS ) ) {
+                executor.shutdownNow();
+            }
+        }
+        catch( InterruptedException ex ) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run a task in the background
+     *
+     * @param name name of the task for logging
+     * @param task task
+     *
+     * @return Future of the task
+     */
+    public Future<?> submit( String name, Task task )
+    {
+        submitted.incrementAndGet();
+        return executor.submit( wrap( name, task ) );
+    }
+
+    /**
+     * Run a task in the background after a delay
+     *
+     * @param name  name of the task for logging
+     * @param task  task
+     * @param delay delay
+     * @param unit  unit of delay
+     *
+     * @return ScheduledFuture of the task
+     */
+    public ScheduledFuture<?> schedule( String name, Task task, long delay, TimeUnit unit )
+    {
+        submitted.incrementAndGet();
+        return executor.schedule( wrap( name, task ), delay, unit );
+    }
+
+    /**
+     * The underlying executor for components that manage their own tasks
+     *
+     * @return ScheduledExecutorService
+     */
+    public ScheduledExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    public void status( @Observes Status status )
+    {
+        status.add( "executor", Json.createObjectBuilder()
+                    .add( "threads", executor.getPoolSize() )
+                    .add( "active", executor.getActiveCount() )
+                    .add( "queued", executor.getQueue().size() )
+                    .add( "submitted", submitted.get() )
+                    .add( "failed", failed.get() ) );
+    }
+
+    private Runnable wrap( String name, Task task )
+    {
+        return () -> {
+            try {
+                task.run();
+            }
+            catch( Exception ex ) {
+                failed.incrementAndGet();
+                LOG.log( Level.SEVERE, ex, () -> name + " failed" );
+            }
+        };
+    }
+}
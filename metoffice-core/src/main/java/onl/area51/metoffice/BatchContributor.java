@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import javax.json.JsonObject;
+
+/**
+ * A source of items for the /api/modp/batch.json endpoint.
+ * <p>
+ * Implementations are beans and are found by {@link BatchWS} when it is deployed. Each handles one query parameter, e.g. "layer", and adds
+ * the items requested with it to one section of the combined document.
+ *
+ * @author peter
+ */
+public interface BatchContributor
+{
+
+    /**
+     * The query parameter naming the items this contributor provides
+     *
+     * @return parameter name
+     */
+    String getParameter();
+
+    /**
+     * The name of the section in the combined document
+     *
+     * @return section name
+     */
+    String getSection();
+
+    /**
+     * The version of an item. This must change whenever the item's json does as it forms part of the ETag of the combined document.
+     *
+     * @param id item id
+     *
+     * @return version or null if the item is unknown
+     */
+    String getVersion( String id );
+
+    /**
+     * The json of an item. This should be precomputed as it's called for every request.
+     *
+     * @param id item id
+     *
+     * @return json or null if the item is unknown
+     */
+    JsonObject getItem( String id );
+}
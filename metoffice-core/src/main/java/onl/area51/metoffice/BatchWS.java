@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import onl.area51.httpd.action.ActionRegistry;
+import onl.area51.httpd.rest.JsonEntity;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.protocol.HttpContext;
+import uk.trainwatch.util.config.Configuration;
+import uk.trainwatch.util.config.ConfigurationService;
+
+/**
+ * Handles the /api/modp/batch.json endpoint which returns several items in one response, saving a client a request per item.
+ * <p>
+ * Items are requested by query parameter, each provided by a {@link BatchContributor}. A parameter can be repeated or take a comma separated
+ * list, e.g. /api/modp/batch.json?layer=Precipitation_Rate,Rainfall&amp;region=514. The response has a section per contributor mapping each
+ * requested id to its json, or null if the item is unknown:
+ * <pre>
+ * {"layers": {"Precipitation_Rate": {...}, "Rainfall": {...}}, "regions": {"514": {...}}}
+ * </pre>
+ * The ETag is computed from the versions of the requested items so a client sending If-None-Match gets a 304 without the document being
+ * built. The response is gzipped if the client accepts it.
+ * <p>
+ * Configuration: An optional JsonObject called "batch" within the "metoffice" configuration with the following parameters:
+ * <table>
+ * <tr><th>Parameter</th><th>Type</th><th>Required</th><th>Purpose</th></tr>
+ * <tr><td>maxItems</td><td>Long</td><td>No (100)</td><td>Maximum number of items in one request</td></tr>
+ * </table>
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class BatchWS
+{
+
+    private static final String PREFIX = "/api/modp";
+    private static final long DEFAULT_MAX_ITEMS = 100;
+
+    @Inject
+    private ConfigurationService configurationService;
+
+    @Inject
+    private Instance<BatchContributor> contributors;
+
+    private int maxItems;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+
+    @PostConstruct
+    void start()
+    {
+        Configuration config = configurationService.getConfiguration( "metoffice" ).getConfiguration( "batch" );
+        maxItems = (int) config.getLong( "maxItems", DEFAULT_MAX_ITEMS );
+    }
+
+    public void deploy( @Observes ActionRegistry registry )
+    {
+        registry.registerHandler( PREFIX + "/batch.json", this::handle );
+    }
+
+    public void status( @Observes Status status )
+    {
+        status.add( "batch", Json.createObjectBuilder()
+                    .add( "requests", requests.get() )
+                    .add( "notModified", notModified.get() )
+                    .add( "items", items.get() ) );
+    }
+
+    protected void handle( HttpRequest request, HttpResponse response, HttpContext context )
+    {
+        if( !"GET".equalsIgnoreCase( request.getRequestLine().getMethod() ) ) {
+            response.setStatusCode( HttpStatus.SC_METHOD_NOT_ALLOWED );
+            return;
+        }
+
+        Map<BatchContributor, Set<String>> requested;
+        try {
+            requested = parse( request );
+        }
+        catch( URISyntaxException |
+               IllegalArgumentException ex ) {
+            response.setStatusCode( HttpStatus.SC_BAD_REQUEST );
+            return;
+        }
+
+        int count = requested.values().stream().mapToInt( Set::size ).sum();
+        if( count == 0 || count > maxItems ) {
+            response.setStatusCode( HttpStatus.SC_BAD_REQUEST );
+            return;
+        }
+
+        requests.incrementAndGet();
+
+        boolean gzip = acceptsGzip( request );
+        String etag = getETag( requested, gzip );
+        response.setHeader( HttpHeaders.ETAG, etag );
+        response.setHeader( HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING );
+
+        Header ifNoneMatch = request.getFirstHeader( HttpHeaders.IF_NONE_MATCH );
+        if( ifNoneMatch != null && ifNoneMatch.getValue().contains( etag ) ) {
+            notModified.incrementAndGet();
+            response.setStatusCode( HttpStatus.SC_NOT_MODIFIED );
+            return;
+        }
+
+        items.addAndGet( count );
+
+        JsonObjectBuilder b = Json.createObjectBuilder();
+        requested.forEach( ( contributor, ids ) -> {
+            JsonObjectBuilder section = Json.createObjectBuilder();
+            for( String id: ids ) {
+                JsonObject item = contributor.getItem( id );
+                if( item == null ) {
+                    section.addNull( id );
+                }
+                else {
+                    section.add( id, item );
+                }
+            }
+            b.add( contributor.getSection(), section );
+        } );
+
+        HttpEntity entity = new JsonEntity( b );
+        response.setStatusCode( HttpStatus.SC_OK );
+        response.setEntity( gzip ? new GzipCompressingEntity( entity ) : entity );
+    }
+
+    /**
+     * The ids requested for each contributor, in the order they were requested
+     *
+     * @param request request
+     *
+     * @return map of contributor to ids
+     *
+     * @throws URISyntaxException if the request uri is invalid
+     */
+    private Map<BatchContributor, Set<String>> parse( HttpRequest request )
+            throws URISyntaxException
+    {
+        Map<String, BatchContributor> byParameter = new LinkedHashMap<>();
+        contributors.forEach( c -> byParameter.put( c.getParameter(), c ) );
+
+        Map<BatchContributor, Set<String>> requested = new LinkedHashMap<>();
+        List<NameValuePair> params = URLEncodedUtils.parse( new URI( request.getRequestLine().getUri() ), StandardCharsets.UTF_8 );
+        for( NameValuePair p: params ) {
+            BatchContributor contributor = byParameter.get( p.getName() );
+            if( contributor == null ) {
+                throw new IllegalArgumentException( "Unknown parameter " + p.getName() );
+            }
+            if( p.getValue() != null ) {
+                Set<String> ids = requested.computeIfAbsent( contributor, c -> new LinkedHashSet<>() );
+                for( String id: p.getValue().split( "," ) ) {
+                    if( !id.trim().isEmpty() ) {
+                        ids.add( id.trim() );
+                    }
+                }
+            }
+        }
+        return requested;
+    }
+
+    private boolean acceptsGzip( HttpRequest request )
+    {
+        for( Header h: request.getHeaders( HttpHeaders.ACCEPT_ENCODING ) ) {
+            if( h.getValue().toLowerCase().contains( "gzip" ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The ETag of a response. This is the digest of the version of every requested item, so it changes when any of them do. Ids are sorted
+     * so the order they were requested in doesn't matter.
+     *
+     * @param requested requested ids
+     * @param gzip      true if the response is gzipped, which has a different ETag
+     *
+     * @return ETag
+     */
+    private String getETag( Map<BatchContributor, Set<String>> requested, boolean gzip )
+    {
+        List<String> parts = new ArrayList<>();
+        requested.forEach( ( contributor, ids ) -> {
+            for( String id: new TreeSet<>( ids ) ) {
+                parts.add( contributor.getParameter() + ":" + id + "=" + Objects.toString( contributor.getVersion( id ), "-" ) );
+            }
+        } );
+        parts.sort( null );
+
+        try {
+            MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+            byte digest[] = md.digest( String.join( "\n", parts ).getBytes( StandardCharsets.UTF_8 ) );
+            return "\"" + CacheFiles.toHex( digest ).substring( 0, 32 ) + (gzip ? "-gz" : "") + "\"";
+        }
+        catch( NoSuchAlgorithmException ex ) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException( ex );
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A content addressed store within the cache.
+ * <p>
+ * Each blob is stored once under its SHA-256 digest as {root}/{first two digits}/{digest}.{ext} so identical content downloaded for different
+ * issues shares the same file. Blobs are never modified, only removed by {@link #sweep(java.util.Set, java.time.Duration)} once nothing
+ * references them. A blob's last modified time is when it was last stored, so a blob reused by a new issue is protected from a sweep until that
+ * issue's index references it.
+ *
+ * @author peter
+ */
+public class BlobStore
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private final Path root;
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong swept = new AtomicLong();
+
+    /**
+     * @param root Root of the store in the cache
+     */
+    public BlobStore( Path root )
+    {
+        this.root = root;
+    }
+
+    /**
+     * The path of a blob
+     *
+     * @param digest hex digest
+     * @param ext    file extension
+     *
+     * @return Path
+     */
+    public Path getPath( String digest, String ext )
+    {
+        return root.resolve( digest.substring( 0, 2 ) ).resolve( digest + "." + ext );
+    }
+
+    /**
+     * Move a file into the store. If the blob already exists the file is simply deleted and the blob touched so that a sweep running before
+     * the new reference is recorded does not remove it.
+     *
+     * @param file   file to store, this will no longer exist afterwards
+     * @param digest hex digest of the file
+     * @param ext    file extension
+     *
+     * @return Path of the blob
+     *
+     * @throws IOException on failure
+     */
+    public Path store( Path file, String digest, String ext )
+            throws IOException
+    {
+        Path blob = getPath( digest, ext );
+        if( CacheFiles.isValid( blob ) ) {
+            Files.deleteIfExists( file );
+            Files.setLastModifiedTime( blob, FileTime.fromMillis( System.currentTimeMillis() ) );
+            deduplicated.incrementAndGet();
+        }
+        else {
+            CacheFiles.move( file, blob );
+            stored.incrementAndGet();
+        }
+        return blob;
+    }
+
+    /**
+     * Remove any blob that is not referenced.
+     *
+     * @param live  digests that are referenced
+     * @param grace blobs modified within this time are kept as they may have been stored but not yet referenced
+     *
+     * @throws IOException on failure
+     */
+    public void sweep( Set<String> live, Duration grace )
+            throws IOException
+    {
+        if( !Files.isDirectory( root, LinkOption.NOFOLLOW_LINKS ) ) {
+            return;
+        }
+
+        long cutoff = System.currentTimeMillis() - grace.toMillis();
+
+        List<Path> blobs;
+        try( Stream<Path> s = Files.walk( root ) ) {
+            blobs = s.filter( p -> Files.isRegularFile( p, LinkOption.NOFOLLOW_LINKS ) )
+                    .collect( Collectors.toList() );
+        }
+
+        for( Path blob: blobs ) {
+            String name = blob.getFileName().toString();
+            int i = name.indexOf( '.' );
+            String digest = i > 0 ? name.substring( 0, i ) : name;
+            if( !live.contains( digest ) && Files.getLastModifiedTime( blob ).toMillis() < cutoff ) {
+                Files.deleteIfExists( blob );
+                swept.incrementAndGet();
+                LOG.log( Level.FINE, () -> "Swept " + blob );
+            }
+        }
+    }
+
+    /**
+     * Number of blobs added to the store
+     *
+     * @return count
+     */
+    public long getStored()
+    {
+        return stored.get();
+    }
+
+    /**
+     * Number of files that were already in the store
+     *
+     * @return count
+     */
+    public long getDeduplicated()
+    {
+        return deduplicated.get();
+    }
+
+    /**
+     * Number of blobs removed by sweep
+     *
+     * @return count
+     */
+    public long getSwept()
+    {
+        return swept.get();
+    }
+}
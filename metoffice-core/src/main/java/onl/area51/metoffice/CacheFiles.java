@@ -0,0 +1,393 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Crash safe writes to the cache.
+ * <p>
+ * Content is written to a temporary file alongside the target, flushed to disk, checked against the expected length and only then moved into
+ * place. A crash or failed download therefore never leaves a truncated file at the target, so the existence of a file in the cache means it is
+ * complete.
+ * <p>
+ * {@link #isValid(java.nio.file.Path)} provides a quick check of a cached file without parsing it so anything written before this existed can
+ * be detected and retrieved again. Files written here, or already checked, are remembered with their size and last modified time so checking
+ * them again only needs their attributes rather than reading them.
+ * <p>
+ * A crash before the move leaves the temporary file behind, {@link #deleteStale(java.nio.file.Path, java.time.Duration)} removes them.
+ *
+ * @author peter
+ */
+public final class CacheFiles
+{
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Reusable copy buffer for each thread
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial( () -> ByteBuffer.allocateDirect( BUFFER_SIZE ) );
+
+    private static final byte PNG_HEADER[] = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte PNG_TRAILER[] = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xae, 0x42, 0x60, (byte) 0x82};
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Most files remembered as valid, when exceeded they are all forgotten and checked again when next used
+     */
+    private static final int MAX_VALID = 10000;
+
+    private static final Map<Path, Stamp> VALID = new ConcurrentHashMap<>();
+
+    /**
+     * The size and last modified time of a file when it was known to be valid
+     */
+    private static final class Stamp
+    {
+
+        private final long size;
+        private final long modified;
+
+        Stamp( BasicFileAttributes attrs )
+        {
+            this.size = attrs.size();
+            this.modified = attrs.lastModifiedTime().toMillis();
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            return obj instanceof Stamp && ((Stamp) obj).size == size && ((Stamp) obj).modified == modified;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Long.hashCode( size ) * 31 + Long.hashCode( modified );
+        }
+    }
+
+    private CacheFiles()
+    {
+    }
+
+    /**
+     * Write content to the cache
+     *
+     * @param target         Path to write to
+     * @param in             InputStream of content
+     * @param expectedLength the expected length of the content or -1 if unknown
+     *
+     * @return number of bytes written
+     *
+     * @throws IOException on failure including if the length written does not match expectedLength
+     */
+    public static long write( Path target, InputStream in, long expectedLength )
+            throws IOException
+    {
+        return write( target, in, expectedLength, null );
+    }
+
+    /**
+     * Write content to the cache whilst calculating its digest
+     *
+     * @param target         Path to write to
+     * @param in             InputStream of content
+     * @param expectedLength the expected length of the content or -1 if unknown
+     * @param digest         MessageDigest to update with the content, null for none
+     *
+     * @return number of bytes written
+     *
+     * @throws IOException on failure including if the length written does not match expectedLength
+     */
+    public static long write( Path target, InputStream in, long expectedLength, MessageDigest digest )
+            throws IOException
+    {
+        Path temp = target.resolveSibling( "." + target.getFileName() + "." + Long.toHexString( ThreadLocalRandom.current().nextLong() ) + TEMP_SUFFIX );
+        boolean moved = false;
+        try {
+            long length = copy( digest == null ? in : new DigestInputStream( in, digest ), temp );
+
+            if( expectedLength >= 0 && length != expectedLength ) {
+                throw new IOException( "Expected " + expectedLength + " bytes but got " + length + " for " + target );
+            }
+
+            move( temp, target );
+            moved = true;
+            valid( target, Files.readAttributes( target, BasicFileAttributes.class ) );
+
+            return length;
+        }
+        finally {
+            if( !moved ) {
+                Files.deleteIfExists( temp );
+            }
+        }
+    }
+
+    /**
+     * Move a file atomically if the filesystem supports it replacing any existing file
+     *
+     * @param source source
+     * @param target target
+     *
+     * @throws IOException on failure
+     */
+    public static void move( Path source, Path target )
+            throws IOException
+    {
+        try {
+            Files.move( source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        }
+        catch( AtomicMoveNotSupportedException ex ) {
+            Files.move( source, target, StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    /**
+     * Convert a digest to lower case hex
+     *
+     * @param digest digest
+     *
+     * @return hex string
+     */
+    public static String toHex( byte digest[] )
+    {
+        StringBuilder sb = new StringBuilder( digest.length * 2 );
+        for( byte b: digest ) {
+            sb.append( Character.forDigit( (b >> 4) & 0xf, 16 ) )
+                    .append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write content to the cache
+     *
+     * @param target Path to write to
+     * @param data   content
+     *
+     * @throws IOException on failure
+     */
+    public static void write( Path target, byte data[] )
+            throws IOException
+    {
+        write( target, new ByteArrayInputStream( data ), data.length );
+    }
+
+    /**
+     * Copy a stream to a new file, forcing it to disk if the filesystem supports it
+     *
+     * @param in   InputStream
+     * @param path Path of new file
+     *
+     * @return number of bytes copied
+     *
+     * @throws IOException on failure
+     */
+    private static long copy( InputStream in, Path path )
+            throws IOException
+    {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open( path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+        }
+        catch( UnsupportedOperationException ex ) {
+            // Filesystem doesn't support channels so we cannot sync
+            try( OutputStream os = Files.newOutputStream( path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE ) ) {
+                long length = 0;
+                byte buffer[] = new byte[BUFFER_SIZE];
+                int n;
+                while( (n = in.read( buffer )) > -1 ) {
+                    os.write( buffer, 0, n );
+                    length += n;
+                }
+                return length;
+            }
+        }
+
+        try( FileChannel ch = channel ) {
+            ReadableByteChannel src = Channels.newChannel( in );
+            ByteBuffer buffer = BUFFER.get();
+            buffer.clear();
+            long length = 0;
+            while( src.read( buffer ) > -1 ) {
+                buffer.flip();
+                while( buffer.hasRemaining() ) {
+                    length += ch.write( buffer );
+                }
+                buffer.clear();
+            }
+            ch.force( true );
+            return length;
+        }
+    }
+
+    /**
+     * Quickly check that a file in the cache is complete without parsing it.
+     * <p>
+     * A file must not be empty. A png must start with the png signature and end with the IEND chunk. A json file must end with '}' or ']'. A
+     * file that is unchanged since it was written by us or last checked is not read again.
+     *
+     * @param path Path to check
+     *
+     * @return true if the file exists and appears to be complete
+     */
+    public static boolean isValid( Path path )
+    {
+        if( path == null ) {
+            return false;
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes( path, BasicFileAttributes.class );
+        }
+        catch( IOException ex ) {
+            // Usually doesn't exist
+            return false;
+        }
+
+        if( !attrs.isRegularFile() || attrs.size() == 0 ) {
+            return false;
+        }
+
+        if( new Stamp( attrs ).equals( VALID.get( path ) ) ) {
+            return true;
+        }
+
+        if( check( path, attrs.size() ) ) {
+            valid( path, attrs );
+            return true;
+        }
+        return false;
+    }
+
+    private static void valid( Path path, BasicFileAttributes attrs )
+    {
+        if( VALID.size() >= MAX_VALID ) {
+            VALID.clear();
+        }
+        VALID.put( path, new Stamp( attrs ) );
+    }
+
+    private static boolean check( Path path, long size )
+    {
+        String name = path.getFileName().toString();
+        if( !name.endsWith( ".png" ) && !name.endsWith( ".json" ) ) {
+            return true;
+        }
+
+        try( SeekableByteChannel ch = Files.newByteChannel( path, StandardOpenOption.READ ) ) {
+            if( name.endsWith( ".png" ) ) {
+                return size >= PNG_HEADER.length + PNG_TRAILER.length
+                       && Arrays.equals( PNG_HEADER, read( ch, 0, PNG_HEADER.length ) )
+                       && Arrays.equals( PNG_TRAILER, read( ch, size - PNG_TRAILER.length, PNG_TRAILER.length ) );
+            }
+
+            int len = (int) Math.min( size, 16 );
+            byte b[] = read( ch, size - len, len );
+            for( int i = b.length - 1; i >= 0; i-- ) {
+                if( !Character.isWhitespace( b[i] ) ) {
+                    return b[i] == '}' || b[i] == ']';
+                }
+            }
+            return false;
+        }
+        catch( IOException ex ) {
+            return false;
+        }
+    }
+
+    /**
+     * Delete temporary files left behind under a directory by a write that never completed, e.g. because of a crash
+     *
+     * @param dir directory to search
+     * @param age only files last modified longer ago than this are deleted so writes in progress are left alone
+     *
+     * @return number of files deleted
+     *
+     * @throws IOException on failure
+     */
+    public static int deleteStale( Path dir, Duration age )
+            throws IOException
+    {
+        if( !Files.isDirectory( dir, LinkOption.NOFOLLOW_LINKS ) ) {
+            return 0;
+        }
+
+        long cutoff = System.currentTimeMillis() - age.toMillis();
+        List<Path> temps;
+        try( Stream<Path> s = Files.walk( dir ) ) {
+            temps = s.filter( CacheFiles::isTemporary )
+                    .collect( Collectors.toList() );
+        }
+
+        int count = 0;
+        for( Path temp: temps ) {
+            if( Files.getLastModifiedTime( temp ).toMillis() < cutoff && Files.deleteIfExists( temp ) ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isTemporary( Path path )
+    {
+        String name = path.getFileName().toString();
+        return name.startsWith( "." ) && name.endsWith( TEMP_SUFFIX ) && Files.isRegularFile( path, LinkOption.NOFOLLOW_LINKS );
+    }
+
+    private static byte[] read( SeekableByteChannel ch, long position, int length )
+            throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate( length );
+        ch.position( position );
+        while( b.hasRemaining() ) {
+            if( ch.read( b ) < 0 ) {
+                break;
+            }
+        }
+        return b.array();
+    }
+}
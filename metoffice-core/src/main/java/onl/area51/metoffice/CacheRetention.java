@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.Json;
+import uk.trainwatch.scheduler.Cron;
+import uk.trainwatch.util.config.Configuration;
+import uk.trainwatch.util.config.ConfigurationService;
+
+/**
+ * Removes old issues from the cache.
+ * <p>
+ * Each service registers a {@link RetentionPolicy} for its prefix. Once an hour every policy is applied removing all but the most recent
+ * issues and any issue older than the policy's maximum age. An issue that the policy reports as in use is never removed. Files are deleted in
+ * batches with a pause between each batch so a large purge doesn't swamp the underlying filesystem. Temporary files left under a policy's
+ * prefix by a write that never completed are removed once they are an hour old.
+ * <p>
+ * When the cache is shared between several nodes only the {@link ClusterCoordinator} leader purges it.
+ * <p>
+ * Configuration: An optional JsonObject called "retention" within the "metoffice" configuration with the following parameters:
+ * <table>
+ * <tr><th>Parameter</th><th>Type</th><th>Required</th><th>Purpose</th></tr>
+ * <tr><td>batchSize</td><td>Long</td><td>No (100)</td><td>Number of files deleted in each batch</td></tr>
+ * <tr><td>batchPause</td><td>Long</td><td>No (100)</td><td>Milliseconds to pause between each batch</td></tr>
+ * <tr><td>{policy}</td><td>JsonObject</td><td>No</td><td>Overrides for a policy: "keep" the number of issues and "maxAge" in hours</td></tr>
+ * </table>
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class CacheRetention
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final long DEFAULT_BATCH_SIZE = 100;
+    private static final long DEFAULT_BATCH_PAUSE = 100;
+
+    /**
+     * Age after which a temporary file cannot belong to a write still in progress
+     */
+    private static final Duration STALE = Duration.ofHours( 1 );
+
+    @Inject
+    private ConfigurationService configurationService;
+
+    @Inject
+    private DataPoint dataPoint;
+
+    @Inject
+    private ClusterCoordinator clusterCoordinator;
+
+    private Configuration config;
+    private int batchSize;
+    private long batchPause;
+
+    private final Map<String, RetentionPolicy> policies = new ConcurrentHashMap<>();
+    private final AtomicLong issuesDeleted = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+
+    @PostConstruct
+    void start()
+    {
+        config = configurationService.getConfiguration( "metoffice" ).getConfiguration( "retention" );
+        batchSize = (int) config.getLong( "batchSize", DEFAULT_BATCH_SIZE );
+        batchPause = config.getLong( "batchPause", DEFAULT_BATCH_PAUSE );
+    }
+
+    /**
+     * Register a policy. Any configuration for the policy overrides the keep and maxAge it was defined with.
+     *
+     * @param policy policy
+     */
+    public void register( RetentionPolicy policy )
+    {
+        Configuration c = config.getConfiguration( policy.getName() );
+        long maxAge = c.getLong( "maxAge", policy.getMaxAge() == null ? 0L : policy.getMaxAge().toHours() );
+        policies.put( policy.getName(),
+                      new RetentionPolicy( policy.getName(),
+                                           policy.getPrefix(),
+                                           policy.getDepth(),
+                                           (int) c.getLong( "keep", policy.getKeep() ),
+                                           maxAge > 0 ? Duration.ofHours( maxAge ) : null,
+                                           policy::isInUse ) );
+    }
+
+    @Cron("0 15 * * * ? *")
+    public void purge()
+    {
+        if( !clusterCoordinator.isLeader() ) {
+            return;
+        }
+        policies.values().forEach( this::purge );
+    }
+
+    public void purge( RetentionPolicy policy )
+    {
+        try {
+            List<Path> issues = findIssues( policy );
+            if( !issues.isEmpty() ) {
+                LOG.log( Level.INFO, () -> "Purging " + issues.size() + " issues from " + policy.getPrefix() );
+                delete( issues );
+            }
+
+            int stale = CacheFiles.deleteStale( dataPoint.getPath( policy.getPrefix() ), STALE );
+            if( stale > 0 ) {
+                filesDeleted.addAndGet( stale );
+                LOG.log( Level.INFO, () -> "Deleted " + stale + " stale temporary files from " + policy.getPrefix() );
+            }
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.SEVERE, ex, () -> "Failed to purge " + policy.getPrefix() );
+        }
+    }
+
+    public void status( @Observes Status status )
+    {
+        status.add( "retention", Json.createObjectBuilder()
+                    .add( "issuesDeleted", issuesDeleted.get() )
+                    .add( "filesDeleted", filesDeleted.get() ) );
+    }
+
+    /**
+     * Find the issue directories that should be removed
+     *
+     * @param policy policy
+     *
+     * @return List of issue directories
+     *
+     * @throws IOException on failure
+     */
+    private List<Path> findIssues( RetentionPolicy policy )
+            throws IOException
+    {
+        Path root = dataPoint.getPath( policy.getPrefix() );
+        if( !Files.isDirectory( root, LinkOption.NOFOLLOW_LINKS ) ) {
+            return Collections.emptyList();
+        }
+
+        // Descend to the directories containing the issues
+        List<Path> parents = Collections.singletonList( root );
+        for( int i = 0; i < policy.getDepth(); i++ ) {
+            List<Path> children = new ArrayList<>();
+            for( Path parent: parents ) {
+                children.addAll( listDirectories( parent ) );
+            }
+            parents = children;
+        }
+
+        LocalDateTime oldest = policy.getMaxAge() == null ? null : LocalDateTime.now().minus( policy.getMaxAge() );
+
+        List<Path> issues = new ArrayList<>();
+        for( Path parent: parents ) {
+            // Issue names are ISO date times so sort in time order
+            List<Path> children = listDirectories( parent );
+            children.sort( Comparator.comparing( p -> p.getFileName().toString() ) );
+
+            for( int i = 0; i < children.size(); i++ ) {
+                Path issue = children.get( i );
+                boolean expired = i < children.size() - policy.getKeep()
+                                  || (oldest != null && getIssueTime( issue ).isBefore( oldest ));
+                if( expired && !policy.isInUse( issue ) ) {
+                    issues.add( issue );
+                }
+            }
+        }
+        return issues;
+    }
+
+    private List<Path> listDirectories( Path parent )
+            throws IOException
+    {
+        List<Path> l = new ArrayList<>();
+        try( DirectoryStream<Path> s = Files.newDirectoryStream( parent, p -> Files.isDirectory( p, LinkOption.NOFOLLOW_LINKS ) ) ) {
+            s.forEach( l::add );
+        }
+        return l;
+    }
+
+    /**
+     * The time of an issue. This is taken from the directory name falling back to its last modified time
+     *
+     * @param issue issue directory
+     *
+     * @return time of issue
+     *
+     * @throws IOException on failure
+     */
+    private LocalDateTime getIssueTime( Path issue )
+            throws IOException
+    {
+        try {
+            return LocalDateTime.parse( issue.getFileName().toString() );
+        }
+        catch( DateTimeParseException ex ) {
+            return LocalDateTime.ofInstant( Files.getLastModifiedTime( issue ).toInstant(), ZoneId.systemDefault() );
+        }
+    }
+
+    /**
+     * Delete issues in batches
+     *
+     * @param issues issue directories
+     *
+     * @throws IOException on failure
+     */
+    private void delete( List<Path> issues )
+            throws IOException
+    {
+        int count = 0;
+        for( Path issue: issues ) {
+            // Deepest first so directories are empty when we get to them
+            List<Path> paths;
+            try( Stream<Path> s = Files.walk( issue ) ) {
+                paths = s.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() );
+            }
+
+            for( Path path: paths ) {
+                Files.deleteIfExists( path );
+                filesDeleted.incrementAndGet();
+
+                if( ++count >= batchSize ) {
+                    count = 0;
+                    pause();
+                }
+            }
+
+            issuesDeleted.incrementAndGet();
+            LOG.log( Level.FINE, () -> "Purged " + issue );
+        }
+    }
+
+    private void pause()
+            throws IOException
+    {
+        if( batchPause > 0 ) {
+            try {
+                TimeUnit.MILLISECONDS.sleep( batchPause );
+            }
+            catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.time.Duration;
+
+/**
+ * A simple circuit breaker for a DataPoint service.
+ * <p>
+ * After a number of consecutive failures the circuit opens and requests are refused without contacting DataPoint, so during an outage we do
+ * not spend our quota on requests that will fail. Once the reset period has passed a single trial request is allowed through, if it succeeds
+ * the circuit closes otherwise it remains open for another period.
+ *
+ * @author peter
+ */
+public class CircuitBreaker
+{
+
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final int threshold;
+    private final long resetMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    public CircuitBreaker( String name, int threshold, Duration reset )
+    {
+        this.name = name;
+        this.threshold = threshold;
+        this.resetMillis = reset.toMillis();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    public synchronized int getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * Check that a request may be made
+     *
+     * @return true if the request is the trial, in which case its outcome must be recorded or the trial released
+     *
+     * @throws CircuitOpenException if the circuit is open
+     */
+    public synchronized boolean check()
+            throws CircuitOpenException
+    {
+        switch( state ) {
+            case OPEN:
+                long remaining = openedAt + resetMillis - System.currentTimeMillis();
+                if( remaining > 0 ) {
+                    throw new CircuitOpenException( name, Duration.ofMillis( remaining ) );
+                }
+                // Allow this one request through as a trial
+                state = State.HALF_OPEN;
+                return true;
+
+            case HALF_OPEN:
+                // A trial is already in progress
+                throw new CircuitOpenException( name, Duration.ofMillis( resetMillis ) );
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Record a successful request
+     */
+    public synchronized void success()
+    {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Release a trial that ended without reaching DataPoint so the next request can be the trial instead
+     */
+    public synchronized void release()
+    {
+        if( state == State.HALF_OPEN ) {
+            state = State.OPEN;
+        }
+    }
+
+    /**
+     * Record a failed request
+     */
+    public synchronized void failure()
+    {
+        failures++;
+        if( state == State.HALF_OPEN || failures >= threshold ) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.time.Duration;
+
+/**
+ * Thrown without contacting DataPoint when the circuit breaker for a service is open
+ *
+ * @author peter
+ */
+public class CircuitOpenException
+        extends DataPointException
+{
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException( String service, Duration retryAfter )
+    {
+        super( "circuit open " + service, 0, retryAfter );
+    }
+
+    @Override
+    public boolean isRetryable()
+    {
+        return false;
+    }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+import uk.trainwatch.util.config.Configuration;
+import uk.trainwatch.util.config.ConfigurationService;
+
+/**
+ * Coordinates multiple instances sharing the same cache so that only one of them retrieves from DataPoint.
+ * <p>
+ * The leader is the node holding a lease file, cluster/leader.lease, in the cache. The leader renews the lease in the background whilst it
+ * runs, so it is kept during a long reload, and releases it when it shuts down. Any node may take it over once it expires or is released.
+ * After each complete reload the leader writes a manifest for that service, cluster/{name}.manifest.json, and the other nodes, the followers,
+ * refresh their state from the manifest instead of calling DataPoint.
+ * <p>
+ * Whether we are the leader is cached until half the lease has passed so {@link #isLeader()} is cheap enough to call before every request
+ * to DataPoint. Whilst taking the lease we wait for other nodes to settle without holding any lock, and anyone asking meanwhile is told we
+ * are not the leader.
+ * <p>
+ * Manifests are written whether or not clustering is enabled so a single node can also use them to restore its state on startup.
+ * <p>
+ * Configuration: An optional JsonObject called "cluster" within the "metoffice" configuration with the following parameters:
+ * <table>
+ * <tr><th>Parameter</th><th>Type</th><th>Required</th><th>Purpose</th></tr>
+ * <tr><td>enabled</td><td>Boolean</td><td>No (false)</td><td>Enable leader election, when false this node is always the leader</td></tr>
+ * <tr><td>nodeId</td><td>String</td><td>No (pid@hostname)</td><td>Unique name of this node</td></tr>
+ * <tr><td>lease</td><td>Long</td><td>No (120)</td><td>Seconds the lease is held for without being renewed</td></tr>
+ * <tr><td>settle</td><td>Long</td><td>No (2000)</td><td>Milliseconds to wait before confirming we have taken the lease</td></tr>
+ * </table>
+ * <p>
+ * To try this locally run two instances with "enabled" true, different nodeId's and their cache configured to the same local directory. Only
+ * one will call DataPoint. Stop it and the other takes over once the lease expires. The nodes' clocks must be reasonably in sync.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class ClusterCoordinator
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final String PREFIX = "cluster";
+    private static final String LEASE = "leader.lease";
+
+    @Inject
+    private ConfigurationService configurationService;
+
+    @Inject
+    private DataPoint dataPoint;
+
+    private boolean enabled;
+    private String nodeId;
+    private long leaseMillis;
+    private long settle;
+    private Function<String, Path> resolver;
+    private ScheduledExecutorService renewal;
+
+    private volatile boolean leader;
+    private volatile long expires;
+
+    /**
+     * True whilst a thread is waiting to confirm it has taken the lease, guarded by this
+     */
+    private boolean settling;
+
+    private final Map<String, Long> manifestsSeen = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void start()
+    {
+        Configuration config = configurationService.getConfiguration( "metoffice" ).getConfiguration( "cluster" );
+        configure( config.get( "enabled", Boolean::valueOf, () -> false ),
+                   config.getString( "nodeId", ManagementFactory.getRuntimeMXBean().getName() ),
+                   TimeUnit.SECONDS.toMillis( config.getLong( "lease", 120 ) ),
+                   config.getLong( "settle", 2000 ),
+                   name -> dataPoint.getPath( PREFIX, name ) );
+
+        // Renew on a thread of our own so long reloads filling the BackgroundExecutor cannot delay it past the lease
+        if( enabled ) {
+            long period = leaseMillis / 4;
+            renewal = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread( r, "metoffice-lease" );
+                t.setDaemon( true );
+                return t;
+            } );
+            renewal.scheduleWithFixedDelay( this::renew, period, period, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * Configure this coordinator
+     *
+     * @param enabled     enable leader election
+     * @param nodeId      unique name of this node
+     * @param leaseMillis milliseconds the lease is held for without being renewed
+     * @param settle      milliseconds to wait before confirming we have taken the lease
+     * @param resolver    resolves the name of a file in the cluster directory to its Path
+     */
+    void configure( boolean enabled, String nodeId, long leaseMillis, long settle, Function<String, Path> resolver )
+    {
+        this.enabled = enabled;
+        this.nodeId = nodeId;
+        this.leaseMillis = leaseMillis;
+        this.settle = settle;
+        this.resolver = resolver;
+    }
+
+    @PreDestroy
+    void stop()
+    {
+        if( renewal != null ) {
+            renewal.shutdownNow();
+        }
+        release();
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    /**
+     * Is this node the leader, acquiring or renewing the lease as necessary.
+     * <p>
+     * This should be called before each reload so the lease is renewed well within its period.
+     *
+     * @return true if this node should retrieve from DataPoint
+     */
+    public boolean isLeader()
+    {
+        if( !enabled ) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+
+        // Only renew once half of the lease has passed
+        if( leader && now < expires - leaseMillis / 2 ) {
+            return true;
+        }
+
+        boolean wasLeader = leader;
+        Path path = resolver.apply( LEASE );
+        try {
+            boolean claimed;
+            synchronized( this ) {
+                if( settling ) {
+                    // Another thread is taking the lease so we are not the leader until it has
+                    return leader;
+                }
+
+                JsonObject lease = read( path );
+                boolean ours = isOurs( lease );
+                JsonNumber leaseExpires = lease == null ? null : lease.getJsonNumber( "expires" );
+                boolean expired = leaseExpires == null || leaseExpires.longValue() < now;
+
+                if( ours || expired ) {
+                    write( path, Json.createObjectBuilder()
+                           .add( "node", nodeId )
+                           .add( "expires", now + leaseMillis ) );
+                }
+
+                claimed = !ours && expired;
+                settling = claimed;
+                if( !claimed ) {
+                    leader = ours;
+                    expires = now + leaseMillis;
+                }
+            }
+
+            if( claimed ) {
+                // Another node may have taken it at the same time so let things settle then check who won
+                try {
+                    TimeUnit.MILLISECONDS.sleep( settle );
+                    boolean ours = isOurs( read( path ) );
+                    synchronized( this ) {
+                        leader = ours;
+                        expires = now + leaseMillis;
+                    }
+                }
+                finally {
+                    synchronized( this ) {
+                        settling = false;
+                    }
+                }
+            }
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.SEVERE, "Failed to check lease", ex );
+            leader = false;
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            leader = false;
+        }
+
+        boolean isLeader = leader;
+        if( isLeader != wasLeader ) {
+            LOG.log( Level.INFO, () -> nodeId + (isLeader ? " is now the leader" : " is now a follower") );
+        }
+
+        return isLeader;
+    }
+
+    private boolean isOurs( JsonObject lease )
+    {
+        return lease != null && nodeId.equals( lease.getString( "node", null ) );
+    }
+
+    /**
+     * Renew the lease if we hold it. This runs in the background so the lease does not expire whilst a reload takes longer than the lease.
+     */
+    void renew()
+    {
+        try {
+            if( leader ) {
+                isLeader();
+            }
+        }
+        catch( RuntimeException ex ) {
+            LOG.log( Level.SEVERE, "Failed to renew lease", ex );
+        }
+    }
+
+    /**
+     * Release the lease if we hold it so another node can take over straight away rather than waiting for it to expire
+     */
+    synchronized void release()
+    {
+        if( !enabled || !leader ) {
+            return;
+        }
+
+        leader = false;
+        try {
+            Path path = resolver.apply( LEASE );
+            if( isOurs( read( path ) ) ) {
+                write( path, Json.createObjectBuilder()
+                       .add( "node", nodeId )
+                       .add( "expires", 0 ) );
+                LOG.log( Level.INFO, () -> nodeId + " released the lease" );
+            }
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.SEVERE, "Failed to release lease", ex );
+        }
+    }
+
+    /**
+     * Write the manifest for a service
+     *
+     * @param name name of the manifest
+     * @param data content of the manifest
+     *
+     * @throws IOException on failure
+     */
+    public void writeManifest( String name, JsonObjectBuilder data )
+            throws IOException
+    {
+        long written = System.currentTimeMillis();
+        write( getManifestPath( name ), Json.createObjectBuilder()
+               .add( "node", nodeId )
+               .add( "written", written )
+               .add( "data", data ) );
+        manifestsSeen.put( name, written );
+    }
+
+    /**
+     * Read the manifest for a service if it has changed since we last read or wrote it
+     *
+     * @param name name of the manifest
+     *
+     * @return content of the manifest or null if absent or unchanged
+     */
+    public JsonObject readManifest( String name )
+    {
+        JsonObject o = read( getManifestPath( name ) );
+        if( o == null ) {
+            return null;
+        }
+
+        JsonNumber written = o.getJsonNumber( "written" );
+        if( written == null || Long.valueOf( written.longValue() ).equals( manifestsSeen.put( name, written.longValue() ) ) ) {
+            return null;
+        }
+
+        return o.getJsonObject( "data" );
+    }
+
+    public void status( @Observes Status status )
+    {
+        status.add( "cluster", Json.createObjectBuilder()
+                    .add( "enabled", enabled )
+                    .add( "nodeId", nodeId )
+                    .add( "leader", !enabled || leader ) );
+    }
+
+    private Path getManifestPath( String name )
+    {
+        return resolver.apply( name + ".manifest.json" );
+    }
+
+    private JsonObject read( Path path )
+    {
+        if( !CacheFiles.isValid( path ) ) {
+            return null;
+        }
+        try( JsonReader r = Json.createReader( Files.newBufferedReader( path ) ) ) {
+            return r.readObject();
+        }
+        catch( IOException |
+               JsonException ex ) {
+            LOG.log( Level.WARNING, ex, () -> "Failed to read " + path );
+            return null;
+        }
+    }
+
+    private void write( Path path, JsonObjectBuilder b )
+            throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try( JsonWriter w = Json.createWriter( os ) ) {
+            w.writeObject( b.build() );
+        }
+        CacheFiles.write( path, os.toByteArray() );
+    }
+}
@@ -15,28 +15,37 @@
  */
 package onl.area51.metoffice;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
@@ -44,6 +53,7 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.isomorphism.util.TokenBucket;
 import org.isomorphism.util.TokenBuckets;
+import uk.trainwatch.util.Functions;
 import uk.trainwatch.util.MapBuilder;
 import uk.trainwatch.util.config.Configuration;
 import uk.trainwatch.util.config.ConfigurationService;
@@ -60,9 +70,24 @@ import uk.trainwatch.util.config.ConfigurationService;
  * <tr><td>refillTokens</td><td>Long</td><td>No (capacity)</td><td>Tokens to refill for each period</td></tr>
  * <tr><td>period</td><td>Long</td><td>No (1)</td><td>Refill period</td></tr>
  * <tr><td>timeUnit</td><td>TimeUnit</td><td>No (MINUTES)</td><td>TimeUnit for period</td></tr>
+ * <tr><td>retries</td><td>Long</td><td>No (3)</td><td>Maximum number of retries of a failed request</td></tr>
+ * <tr><td>backoff</td><td>Long</td><td>No (1000)</td><td>Initial backoff in milliseconds between retries</td></tr>
+ * <tr><td>maxBackoff</td><td>Long</td><td>No (60000)</td><td>Maximum backoff in milliseconds between retries</td></tr>
+ * <tr><td>breakerThreshold</td><td>Long</td><td>No (5)</td><td>Consecutive failures before a service's circuit breaker opens</td></tr>
+ * <tr><td>breakerReset</td><td>Long</td><td>No (300)</td><td>Seconds a circuit breaker remains open</td></tr>
+ * <tr><td>coalesceTtl</td><td>Long</td><td>No (5)</td><td>Seconds the result of a call is shared with identical calls</td></tr>
  * </table>
  * <p>
  * The token bucket is used to rate limit calls to the MetOffice as they do have limits within the license.
+ * <p>
+ * Requests that fail with a 429 or 5xx response, or fail to connect, are retried with a jittered exponential backoff honouring any
+ * Retry-After header. Retries are only made whilst the token bucket has tokens available so they never delay other requests. Each service,
+ * e.g. "layer/wxfcs", has a circuit breaker so that during an outage we stop spending tokens on requests that will fail.
+ * <p>
+ * Concurrent calls for the same uri are coalesced so only one request is made and its result is shared.
+ * <p>
+ * Content such as images should be retrieved with {@link #download(java.lang.String, java.nio.file.Path)} which streams it directly into
+ * the cache, calculating its SHA-256 digest as it is written.
  *
  * @author peter
  */
@@ -74,6 +99,12 @@ public class DataPoint
      * The default capacity and refill amount. Max 50 calls per minute
      */
     private static final int DEFAULT_CAPACITY = 50;
+    private static final int DEFAULT_RETRIES = 3;
+    private static final long DEFAULT_BACKOFF = 1000L;
+    private static final long DEFAULT_MAX_BACKOFF = 60000L;
+    private static final int DEFAULT_BREAKER_THRESHOLD = 5;
+    private static final long DEFAULT_BREAKER_RESET = 300L;
+    private static final long DEFAULT_COALESCE_TTL = 5L;
 
     private static final Logger LOG = Logger.getGlobal();
 
@@ -86,8 +117,19 @@ public class DataPoint
     private String apiKey;
     private Level logLevel;
     private TokenBucket bucket;
+    private int retries;
+    private long backoff;
+    private long maxBackoff;
+    private int breakerThreshold;
+    private Duration breakerReset;
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private SingleFlight<String, JsonObject> calls;
+    private SingleFlight<String, DownloadResult> downloads;
+    private final AtomicLong downloadedBytes = new AtomicLong();
 
-    private FileSystem fileSystem;
+    private Configuration cacheConfig;
+    private volatile FileSystem fileSystem;
 
     @PostConstruct
     void start()
@@ -114,17 +156,43 @@ public class DataPoint
                                                   config.getEnumOrDefault( "timeUnit", TimeUnit.class, () -> TimeUnit.MINUTES ) )
                 .build();
 
-        try {
-            fileSystem = FileSystems.newFileSystem( URI.create( "cache://modp" ), configuration.getConfiguration( "cache" ) );
-        }
-        catch( IOException ex ) {
-            LOG.log( Level.SEVERE, null, ex );
-            throw new UncheckedIOException( ex );
+        retries = (int) config.getLong( "retries", DEFAULT_RETRIES );
+        backoff = config.getLong( "backoff", DEFAULT_BACKOFF );
+        maxBackoff = config.getLong( "maxBackoff", DEFAULT_MAX_BACKOFF );
+        breakerThreshold = (int) config.getLong( "breakerThreshold", DEFAULT_BREAKER_THRESHOLD );
+        breakerReset = Duration.ofSeconds( config.getLong( "breakerReset", DEFAULT_BREAKER_RESET ) );
+
+        long coalesceTtl = TimeUnit.SECONDS.toMillis( config.getLong( "coalesceTtl", DEFAULT_COALESCE_TTL ) );
+        calls = new SingleFlight<>( coalesceTtl );
+        downloads = new SingleFlight<>( coalesceTtl );
+
+        // The cache filesystem can be slow to create, e.g. if it's remote, so it's only created when first used
+        cacheConfig = configuration.getConfiguration( "cache" );
+    }
+
+    private FileSystem getFileSystem()
+    {
+        FileSystem fs = fileSystem;
+        if( fs == null ) {
+            synchronized( this ) {
+                fs = fileSystem;
+                if( fs == null ) {
+                    try {
+                        fs = FileSystems.newFileSystem( URI.create( "cache://modp" ), cacheConfig );
+                        fileSystem = fs;
+                    }
+                    catch( IOException ex ) {
+                        LOG.log( Level.SEVERE, null, ex );
+                        throw new UncheckedIOException( ex );
+                    }
+                }
+            }
         }
+        return fs;
     }
 
     @PreDestroy
-    void stop()
+    synchronized void stop()
     {
         if( fileSystem != null ) {
             try {
@@ -141,7 +209,7 @@ public class DataPoint
 
     public Path getPath( String first, String... more )
     {
-        return fileSystem.getPath( first, more );
+        return getFileSystem().getPath( first, more );
     }
 
     /**
@@ -178,9 +246,6 @@ public class DataPoint
             throws IOException,
                    URISyntaxException
     {
-        // Rate limit ourselves
-        bucket.consume();
-
         URI uri = new URI( scheme, hostname,
                            String.join( "/",
                                         path,
@@ -193,27 +258,31 @@ public class DataPoint
                            .toQueryString(),
                            null );
 
-        try( CloseableHttpClient client = HttpClients.createDefault() ) {
-            try( CloseableHttpResponse response = client.execute( new HttpGet( uri ) ) ) {
-
-                int returnCode = response.getStatusLine().getStatusCode();
-                LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
-
-                switch( returnCode ) {
-                    case 200:
-                    case 304:
-                        try( InputStream is = response.getEntity().getContent() ) {
-                            try( JsonReader r = Json.createReader( is ) ) {
-                                JsonObject result = r.readObject();
-                                LOG.log( logLevel, () -> String.join( ":", service, function, Objects.toString( result ) ) );
-                                return result;
-                            }
-                        }
-
-                    default:
-                        throw new FileNotFoundException();
-                }
-            }
+        String u = uri.toString();
+        DataPointEvent event = DataPointEvent.start( "call", service, function );
+        // Only the caller that makes the request sees the response, anyone else shares its result
+        event.coalesced = true;
+        try {
+            return calls.get( u, () -> {
+                          event.coalesced = false;
+                          return execute( service, u, response -> {
+                                      event.status = response.getStatusLine().getStatusCode();
+                                      try( InputStream is = response.getEntity().getContent() ) {
+                                          try( JsonReader r = Json.createReader( is ) ) {
+                                              JsonObject result = r.readObject();
+                                              LOG.log( logLevel, () -> String.join( ":", service, function, Objects.toString( result ) ) );
+                                              return result;
+                                          }
+                                      }
+                                  }, null );
+                      } );
+        }
+        catch( IOException ex ) {
+            event.failed( ex );
+            throw ex;
+        }
+        finally {
+            event.finish();
         }
     }
 
@@ -242,32 +311,321 @@ public class DataPoint
          } );
     }
 
+    /**
+     * Make a call to a url returned by DataPoint, e.g. an image.
+     * <p>
+     * A response that still fails after any retries is passed to the failure consumer rather than being thrown.
+     *
+     * @param url     url to retrieve
+     * @param success Consumer of a successful response
+     * @param failure Consumer of an unsuccessful response
+     *
+     * @throws IOException         on failure
+     * @throws CircuitOpenException if DataPoint was not called as the service's circuit breaker is open
+     * @throws URISyntaxException  if the url is invalid
+     */
     public void rawCall( String url, Consumer<HttpResponse> success, Consumer<HttpResponse> failure )
             throws IOException,
                    URISyntaxException
     {
-        // Rate limit ourselves
-        bucket.consume();
+        String service = getService( new URI( url ) );
+        DataPointEvent event = DataPointEvent.start( "rawCall", service, url );
+        try {
+            execute( service, addKey( url ), response -> {
+                 event.status = response.getStatusLine().getStatusCode();
+                 success.accept( response );
+                 return null;
+             }, response -> {
+                 event.status = response.getStatusLine().getStatusCode();
+                 if( failure != null ) {
+                     failure.accept( response );
+                 }
+             } );
+        }
+        catch( IOException ex ) {
+            event.failed( ex );
+            throw ex;
+        }
+        finally {
+            event.finish();
+        }
+    }
 
-        String uri = url.concat( url.contains( "?" ) ? "&key=" + apiKey : "?key=" + apiKey );
+    /**
+     * Download a url returned by DataPoint, e.g. an image, directly into the cache.
+     * <p>
+     * The content is written atomically with {@link CacheFiles#write(java.nio.file.Path, java.io.InputStream, long)} so the path will only
+     * exist once the download has completed. Concurrent downloads of the same url to the same path are coalesced.
+     *
+     * @param url  url to retrieve
+     * @param path Path in the cache to write to
+     *
+     * @return DownloadResult
+     *
+     * @throws DataPointException  if DataPoint returned an unsuccessful response
+     * @throws CircuitOpenException if DataPoint was not called as the service's circuit breaker is open
+     * @throws IOException         on failure
+     * @throws URISyntaxException  if the url is invalid
+     */
+    public DownloadResult download( String url, Path path )
+            throws IOException,
+                   URISyntaxException
+    {
+        String service = getService( new URI( url ) );
+        DataPointEvent event = DataPointEvent.start( "download", service, url );
+        event.coalesced = true;
+        try {
+            DownloadResult result = download( service, url, path, event );
+            event.status = result.getStatus();
+            event.bytes = result.getBytes();
+            return result;
+        }
+        catch( IOException ex ) {
+            event.failed( ex );
+            throw ex;
+        }
+        finally {
+            event.finish();
+        }
+    }
 
-        try( CloseableHttpClient client = HttpClients.createDefault() ) {
-            try( CloseableHttpResponse response = client.execute( new HttpGet( uri ) ) ) {
+    private DownloadResult download( String service, String url, Path path, DataPointEvent event )
+            throws IOException
+    {
+        return downloads.get( url + " " + path, () -> {
+                          event.coalesced = false;
+                          long start = System.nanoTime();
+                          return execute( service, addKey( url ), response -> {
+                                      int status = response.getStatusLine().getStatusCode();
+                                      long bytes = 0;
+                                      String digest = null;
+                                      if( status != 304 ) {
+                                          HttpEntity entity = response.getEntity();
+                                          MessageDigest md = getDigest();
+                                          bytes = CacheFiles.write( path, entity.getContent(), entity.getContentLength(), md );
+                                          digest = CacheFiles.toHex( md.digest() );
+                                          downloadedBytes.addAndGet( bytes );
+                                      }
+                                      return new DownloadResult( path, status, bytes, Duration.ofNanos( System.nanoTime() - start ), digest );
+                                  }, null );
+                      } );
+    }
 
-                int returnCode = response.getStatusLine().getStatusCode();
-                LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
+    private static MessageDigest getDigest()
+    {
+        try {
+            return MessageDigest.getInstance( "SHA-256" );
+        }
+        catch( NoSuchAlgorithmException ex ) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException( ex );
+        }
+    }
 
-                switch( returnCode ) {
-                    case 200:
-                    case 304:
-                        success.accept( response );
-                        break;
+    private String addKey( String url )
+    {
+        return url.concat( url.contains( "?" ) ? "&key=" + apiKey : "?key=" + apiKey );
+    }
 
-                    default:
-                        failure.accept( response );
-                        break;
+    /**
+     * The circuit breakers for each service that has been called
+     *
+     * @return breakers
+     */
+    public Collection<CircuitBreaker> getCircuitBreakers()
+    {
+        return breakers.values();
+    }
+
+    public void status( @Observes Status status )
+    {
+        status.add( "dataPoint", Json.createObjectBuilder()
+                    .add( "tokens", bucket.getNumTokens() )
+                    .add( "calls", calls.getRequests() )
+                    .add( "coalesced", calls.getCoalesced() )
+                    .add( "downloads", downloads.getRequests() )
+                    .add( "downloadsCoalesced", downloads.getCoalesced() )
+                    .add( "downloadedBytes", downloadedBytes.get() )
+                    .add( "breakers", breakers.values()
+                          .stream()
+                          .reduce( Json.createObjectBuilder(),
+                                   ( b, cb ) -> b.add( cb.getName(), Json.createObjectBuilder()
+                                                       .add( "state", cb.getState().name() )
+                                                       .add( "failures", cb.getFailures() ) ),
+                                   Functions.writeOnceBinaryOperator() ) ) );
+    }
+
+    /**
+     * The service name used for a circuit breaker. This is the first two components of the service, e.g. "layer/wxfcs" or "txt/wxfcs".
+     *
+     * @param service service
+     *
+     * @return circuit breaker name
+     */
+    private String getServiceName( String service )
+    {
+        String s[] = service.split( "/" );
+        return s.length > 1 ? s[0] + "/" + s[1] : service;
+    }
+
+    /**
+     * The service of a raw url returned by DataPoint
+     *
+     * @param uri uri
+     *
+     * @return service
+     */
+    private String getService( URI uri )
+    {
+        String p = uri.getPath();
+        if( p == null ) {
+            return "";
+        }
+        if( p.startsWith( path ) ) {
+            p = p.substring( path.length() );
+        }
+        while( p.startsWith( "/" ) ) {
+            p = p.substring( 1 );
+        }
+        return p;
+    }
+
+    @FunctionalInterface
+    private interface ResponseHandler<T>
+    {
+
+        T handle( HttpResponse response )
+                throws IOException;
+    }
+
+    /**
+     * Perform a request against DataPoint applying the rate limit, retries and circuit breaker.
+     * <p>
+     * Only connection failures and error responses are retried and count against the circuit breaker. If the handler fails, e.g. the disk is
+     * full, the exception is thrown straight away as retrying would only download the content again.
+     *
+     * @param <T>     Type of result
+     * @param service service being called
+     * @param uri     uri to retrieve
+     * @param handler Handler for a successful response
+     * @param failure Consumer for a response that failed after all retries. If null a DataPointException is thrown instead
+     *
+     * @return result of the handler
+     *
+     * @throws IOException on failure
+     */
+    private <T> T execute( String service, String uri, ResponseHandler<T> handler, Consumer<HttpResponse> failure )
+            throws IOException
+    {
+        CircuitBreaker breaker = breakers.computeIfAbsent( getServiceName( service ),
+                                                           n -> new CircuitBreaker( n, breakerThreshold, breakerReset ) );
+
+        // Never log our api key
+        String logUri = uri.replace( apiKey, "{key}" );
+
+        for( int attempt = 0;; attempt++ ) {
+            boolean trial = breaker.check();
+            boolean recorded = false;
+
+            DataPointException ex;
+            try {
+                // Rate limit ourselves. Retries only use a token if there's one to spare
+                if( attempt == 0 ) {
+                    bucket.consume();
+                }
+                else if( !bucket.tryConsume() ) {
+                    throw new DataPointException( logUri, 429, null );
+                }
+
+                try( CloseableHttpClient client = HttpClients.createDefault() ) {
+                    try( CloseableHttpResponse response = client.execute( new HttpGet( uri ) ) ) {
+
+                        int returnCode = response.getStatusLine().getStatusCode();
+                        LOG.log( Level.FINE, () -> "ReturnCode " + returnCode + ": " + response.getStatusLine().getReasonPhrase() );
+
+                        switch( returnCode ) {
+                            case 200:
+                            case 304:
+                                breaker.success();
+                                recorded = true;
+                                return handler.handle( response );
+
+                            default:
+                                ex = new DataPointException( logUri, response );
+                                if( !ex.isRetryable() ) {
+                                    // The service is up, it's the request that is at fault
+                                    breaker.success();
+                                }
+                                else {
+                                    breaker.failure();
+                                }
+                                recorded = true;
+
+                                if( !ex.isRetryable() || attempt >= retries ) {
+                                    if( failure != null ) {
+                                        failure.accept( response );
+                                        return null;
+                                    }
+                                    throw ex;
+                                }
+                        }
+                    }
+                }
+                catch( DataPointException e ) {
+                    throw e;
+                }
+                catch( IOException e ) {
+                    if( recorded ) {
+                        // DataPoint responded, it's handling the response that failed so don't retry
+                        throw e;
+                    }
+
+                    // Failed to connect or read the response
+                    breaker.failure();
+                    recorded = true;
+                    if( attempt >= retries ) {
+                        throw e;
+                    }
+                    ex = null;
+                }
+            }
+            finally {
+                // A trial that never reached DataPoint must not leave the breaker half open forever
+                if( trial && !recorded ) {
+                    breaker.release();
                 }
             }
+
+            sleep( attempt, ex == null ? null : ex.getRetryAfter(), logUri );
+        }
+    }
+
+    /**
+     * Sleep before retrying a request using full jitter exponential backoff
+     *
+     * @param attempt    the attempt that failed
+     * @param retryAfter Retry-After from the failed response or null
+     * @param uri        uri being retried
+     *
+     * @throws IOException if interrupted
+     */
+    private void sleep( int attempt, Duration retryAfter, String uri )
+            throws IOException
+    {
+        long delay = ThreadLocalRandom.current().nextLong( Math.min( maxBackoff, backoff << Math.min( attempt, 20 ) ) + 1 );
+        if( retryAfter != null ) {
+            delay = Math.max( delay, Math.min( maxBackoff, retryAfter.toMillis() ) );
+        }
+
+        long d = delay;
+        LOG.log( Level.FINE, () -> "Retrying " + uri + " in " + d + "ms" );
+
+        try {
+            Thread.sleep( delay );
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted retrying " + uri );
         }
     }
 
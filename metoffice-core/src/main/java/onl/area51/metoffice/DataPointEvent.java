@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+/**
+ * Records a request made through {@link DataPoint}, including any time spent waiting for the rate limiter, retries or an identical request
+ * already in flight, as a JFR event when {@link Tracing} is enabled.
+ *
+ * @author peter
+ */
+final class DataPointEvent
+{
+
+    private final JfrDataPointEvent event;
+
+    String operation;
+    String service;
+    String url;
+    int status;
+    long bytes;
+    boolean coalesced;
+
+    private DataPointEvent( JfrDataPointEvent event )
+    {
+        this.event = event;
+    }
+
+    static DataPointEvent start( String operation, String service, String url )
+    {
+        DataPointEvent event = new DataPointEvent( Tracing.isEnabled() ? JfrDataPointEvent.start() : null );
+        event.operation = operation;
+        event.service = service;
+        event.url = url;
+        return event;
+    }
+
+    /**
+     * Record a failure
+     *
+     * @param ex the cause
+     */
+    void failed( Exception ex )
+    {
+        if( ex instanceof DataPointException ) {
+            status = ((DataPointException) ex).getStatus();
+        }
+    }
+
+    void finish()
+    {
+        if( event != null ) {
+            event.finish( this );
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+/**
+ * Thrown when DataPoint returns an unsuccessful response.
+ * <p>
+ * The status code and any Retry-After header are kept so callers can decide if and when a request may be retried.
+ *
+ * @author peter
+ */
+public class DataPointException
+        extends IOException
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final Duration retryAfter;
+
+    public DataPointException( String uri, int status, Duration retryAfter )
+    {
+        super( status + " " + uri );
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public DataPointException( String uri, HttpResponse response )
+    {
+        this( uri, response.getStatusLine().getStatusCode(), getRetryAfter( response ) );
+    }
+
+    /**
+     * The HTTP status returned by DataPoint
+     *
+     * @return status code, 0 if no response was received
+     */
+    public int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * How long DataPoint has asked us to wait before retrying
+     *
+     * @return Duration or null if not specified
+     */
+    public Duration getRetryAfter()
+    {
+        return retryAfter;
+    }
+
+    /**
+     * Can the request be retried. This is true when DataPoint is rate limiting us or has a server side problem. Anything else, e.g. 404 or
+     * 403 will fail again.
+     *
+     * @return true if retrying may succeed
+     */
+    public boolean isRetryable()
+    {
+        return status == 429 || status >= 500;
+    }
+
+    /**
+     * Parse the Retry-After header which is either a number of seconds or an HTTP date
+     *
+     * @param response response
+     *
+     * @return Duration or null if absent or invalid
+     */
+    static Duration getRetryAfter( HttpResponse response )
+    {
+        Header header = response.getFirstHeader( "Retry-After" );
+        if( header == null || header.getValue() == null ) {
+            return null;
+        }
+
+        String value = header.getValue().trim();
+        try {
+            return Duration.ofSeconds( Long.parseLong( value ) );
+        }
+        catch( NumberFormatException ex ) {
+            try {
+                Duration d = Duration.between( ZonedDateTime.now(), ZonedDateTime.parse( value, DateTimeFormatter.RFC_1123_DATE_TIME ) );
+                return d.isNegative() ? Duration.ZERO : d;
+            }
+            catch( DateTimeParseException ex1 ) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * The result of {@link DataPoint#download(java.lang.String, java.nio.file.Path)}
+ *
+ * @author peter
+ */
+public class DownloadResult
+{
+
+    private final Path path;
+    private final int status;
+    private final long bytes;
+    private final Duration duration;
+    private final String digest;
+
+    public DownloadResult( Path path, int status, long bytes, Duration duration, String digest )
+    {
+        this.path = path;
+        this.status = status;
+        this.bytes = bytes;
+        this.duration = duration;
+        this.digest = digest;
+    }
+
+    /**
+     * The path in the cache the content was written to
+     *
+     * @return path
+     */
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * The HTTP status returned by DataPoint
+     *
+     * @return status
+     */
+    public int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Number of bytes written to the cache
+     *
+     * @return bytes, 0 if not modified
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Time taken to make the request and write the content
+     *
+     * @return duration
+     */
+    public Duration getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * The SHA-256 digest of the content written
+     *
+     * @return lower case hex digest or null if not modified
+     */
+    public String getDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * Was the content unchanged so nothing was written
+     *
+     * @return true if DataPoint returned 304
+     */
+    public boolean isNotModified()
+    {
+        return status == 304;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path + " " + status + " " + bytes + " bytes in " + duration.toMillis() + "ms";
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import onl.area51.httpd.action.ActionRegistry;
+import onl.area51.httpd.rest.JsonEntity;
+import org.apache.http.HttpStatus;
+
+/**
+ * Handles the /api/modp/health.json endpoint used as a readiness check.
+ * <p>
+ * This returns 200 once every component can serve requests, usually from the cache, and 503 until then. The content is the
+ * {@link Startup} breakdown.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class HealthWS
+{
+
+    private static final String PREFIX = "/api/modp";
+
+    @Inject
+    private Startup startup;
+
+    public void deploy( @Observes ActionRegistry registry )
+    {
+        startup.stage( "httpd", "deployed" );
+
+        registry.registerHandler( PREFIX + "/health.json", ( request, response, context ) -> {
+                              response.setStatusCode( startup.isReady() ? HttpStatus.SC_OK : HttpStatus.SC_SERVICE_UNAVAILABLE );
+                              response.setEntity( new JsonEntity( startup.toJson() ) );
+                          } );
+    }
+}
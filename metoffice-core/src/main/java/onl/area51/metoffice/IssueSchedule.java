@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import uk.trainwatch.util.JsonUtils;
+
+/**
+ * Learns when DataPoint publishes a new issue of a service so that we only poll its capabilities when an issue is due.
+ * <p>
+ * Each time a new issue is seen we record the interval since the previous issue and the delay between the issue time and when it became
+ * available. We only know it became available after the last poll that didn't see it, so that is the time used: the time we noticed it
+ * includes our own polling backoff and would make the delay creep upwards. The next issue is then expected at the last issue time plus the
+ * median interval and median delay. Nothing is polled until shortly before then, after which we poll with an exponential backoff until the
+ * new issue appears.
+ * <p>
+ * This is driven by a frequent tick, e.g. every minute, calling {@link #shouldPoll(java.time.LocalDateTime)}. If polling fails or retrieving
+ * an issue partially fails then {@link #retry(java.time.LocalDateTime)} ensures we poll again regardless of when the next issue is due,
+ * backing off exponentially whilst it keeps failing so an outage doesn't spend our quota.
+ * <p>
+ * All times are UTC as that is what DataPoint uses for issue times.
+ * <p>
+ * The history is kept in the service's manifest with {@link #getHistory()} and {@link #setHistory(javax.json.JsonObject)} so it survives
+ * a restart.
+ *
+ * @author peter
+ */
+public class IssueSchedule
+{
+
+    private static final int HISTORY = 16;
+
+    private final Duration defaultInterval;
+    private final Duration minPoll;
+    private final Duration maxPoll;
+
+    private final Deque<Long> intervals = new ArrayDeque<>();
+    private final Deque<Long> delays = new ArrayDeque<>();
+
+    private LocalDateTime lastIssue;
+    private LocalDateTime lastUnavailable;
+    private LocalDateTime nextPoll;
+    private LocalDateTime retryAt;
+    private Duration pollInterval;
+    private Duration retryInterval;
+
+    /**
+     * @param defaultInterval Interval between issues used until we have learned it
+     * @param minPoll         Minimum time between polls
+     * @param maxPoll         Maximum time between polls
+     */
+    public IssueSchedule( Duration defaultInterval, Duration minPoll, Duration maxPoll )
+    {
+        this.defaultInterval = defaultInterval;
+        this.minPoll = minPoll;
+        this.maxPoll = maxPoll;
+        this.pollInterval = minPoll;
+        this.retryInterval = minPoll;
+    }
+
+    /**
+     * Should the capabilities be polled now
+     *
+     * @param now current time
+     *
+     * @return true to poll
+     */
+    public synchronized boolean shouldPoll( LocalDateTime now )
+    {
+        if( retryAt != null ) {
+            return !now.isBefore( retryAt );
+        }
+
+        if( lastIssue == null || nextPoll == null ) {
+            return true;
+        }
+
+        // Start polling shortly before the next issue is expected
+        LocalDateTime start = getExpected().minus( minPoll );
+        return !now.isBefore( start ) && !now.isBefore( nextPoll );
+    }
+
+    /**
+     * Is an issue time newer than the last one seen
+     *
+     * @param issue issue time
+     *
+     * @return true if new
+     */
+    public synchronized boolean isNew( LocalDateTime issue )
+    {
+        return issue != null && (lastIssue == null || issue.isAfter( lastIssue ));
+    }
+
+    /**
+     * Record that polling found no new issue so back off
+     *
+     * @param now current time
+     */
+    public synchronized void unchanged( LocalDateTime now )
+    {
+        lastUnavailable = now;
+        nextPoll = now.plus( pollInterval );
+        pollInterval = pollInterval.multipliedBy( 2 );
+        if( pollInterval.compareTo( maxPoll ) > 0 ) {
+            pollInterval = maxPoll;
+        }
+    }
+
+    /**
+     * Record a new issue
+     *
+     * @param issue issue time
+     * @param now   current time, i.e. when we first saw it
+     */
+    public synchronized void issued( LocalDateTime issue, LocalDateTime now )
+    {
+        if( !isNew( issue ) ) {
+            return;
+        }
+
+        // The first issue we see, e.g. on startup, tells us nothing about when it became available
+        if( lastIssue != null ) {
+            add( intervals, Duration.between( lastIssue, issue ).getSeconds() );
+            // If we didn't poll after the issue time we don't know when it became available, add() ignores the 0
+            if( lastUnavailable != null && lastUnavailable.isAfter( issue ) ) {
+                add( delays, Duration.between( issue, lastUnavailable ).getSeconds() );
+            }
+        }
+
+        lastIssue = issue;
+        lastUnavailable = null;
+        retryAt = null;
+        retryInterval = minPoll;
+        pollInterval = minPoll;
+        nextPoll = getExpected().minus( minPoll );
+    }
+
+    /**
+     * Polling or retrieving the current issue failed so poll again shortly, backing off each time it fails again
+     *
+     * @param now current time
+     */
+    public synchronized void retry( LocalDateTime now )
+    {
+        retryAt = now.plus( retryInterval );
+        retryInterval = retryInterval.multipliedBy( 2 );
+        if( retryInterval.compareTo( maxPoll ) > 0 ) {
+            retryInterval = maxPoll;
+        }
+    }
+
+    /**
+     * The current issue has been retrieved in full
+     */
+    public synchronized void completed()
+    {
+        retryAt = null;
+        retryInterval = minPoll;
+    }
+
+    /**
+     * Is the current issue still to be retrieved in full
+     *
+     * @return true if retrying
+     */
+    public synchronized boolean isRetrying()
+    {
+        return retryAt != null;
+    }
+
+    /**
+     * When the next issue is expected to be available
+     *
+     * @return time or null if no issue has been seen
+     */
+    public synchronized LocalDateTime getExpected()
+    {
+        if( lastIssue == null ) {
+            return null;
+        }
+        long interval = intervals.isEmpty() ? defaultInterval.getSeconds() : median( intervals );
+        long delay = delays.isEmpty() ? 0 : median( delays );
+        return lastIssue.plusSeconds( interval + delay );
+    }
+
+    public synchronized LocalDateTime getLastIssue()
+    {
+        return lastIssue;
+    }
+
+    public synchronized JsonObjectBuilder toJson()
+    {
+        JsonObjectBuilder b = Json.createObjectBuilder()
+                .add( "pollInterval", pollInterval.getSeconds() )
+                .add( "medianInterval", intervals.isEmpty() ? defaultInterval.getSeconds() : median( intervals ) )
+                .add( "medianDelay", delays.isEmpty() ? 0 : median( delays ) );
+        JsonUtils.add( b, "lastIssue", lastIssue );
+        JsonUtils.add( b, "expected", getExpected() );
+        JsonUtils.add( b, "nextPoll", nextPoll );
+        JsonUtils.add( b, "retryAt", retryAt );
+        return b;
+    }
+
+    /**
+     * The learned intervals and delays to be persisted
+     *
+     * @return history
+     */
+    public synchronized JsonObjectBuilder getHistory()
+    {
+        return Json.createObjectBuilder()
+                .add( "intervals", toJson( intervals ) )
+                .add( "delays", toJson( delays ) );
+    }
+
+    /**
+     * Restore the learned intervals and delays, e.g. on startup. The last issue is not restored so the first poll establishes it.
+     *
+     * @param history history from {@link #getHistory()}, ignored if null
+     */
+    public synchronized void setHistory( JsonObject history )
+    {
+        if( history != null ) {
+            fromJson( intervals, history.getJsonArray( "intervals" ) );
+            fromJson( delays, history.getJsonArray( "delays" ) );
+        }
+    }
+
+    private static JsonArrayBuilder toJson( Deque<Long> history )
+    {
+        JsonArrayBuilder a = Json.createArrayBuilder();
+        history.forEach( a::add );
+        return a;
+    }
+
+    private static void fromJson( Deque<Long> history, JsonArray a )
+    {
+        if( a != null ) {
+            history.clear();
+            a.getValuesAs( JsonNumber.class ).forEach( n -> add( history, n.longValue() ) );
+        }
+    }
+
+    private static void add( Deque<Long> history, long value )
+    {
+        if( value > 0 ) {
+            history.addLast( value );
+            while( history.size() > HISTORY ) {
+                history.removeFirst();
+            }
+        }
+    }
+
+    private static long median( Deque<Long> history )
+    {
+        long a[] = history.stream().mapToLong( Long::longValue ).toArray();
+        Arrays.sort( a );
+        return a[a.length / 2];
+    }
+}
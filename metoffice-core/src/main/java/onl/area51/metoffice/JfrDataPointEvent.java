@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event behind {@link DataPointEvent}. Only referenced when {@link Tracing#isEnabled()}.
+ *
+ * @author peter
+ */
+@Name("onl.area51.metoffice.DataPoint")
+@Label("DataPoint Request")
+@Category({"MetOffice", "DataPoint"})
+@Description("A call, rawCall or download made to DataPoint")
+final class JfrDataPointEvent
+        extends Event
+{
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Service")
+    String service;
+
+    @Label("URL")
+    @Description("The url or function requested, without the api key")
+    String url;
+
+    @Label("Status")
+    @Description("HTTP status, 0 if no response was received")
+    int status;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Coalesced")
+    @Description("The result of an identical request already in flight or just completed was used")
+    boolean coalesced;
+
+    static JfrDataPointEvent start()
+    {
+        JfrDataPointEvent event = new JfrDataPointEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish( DataPointEvent e )
+    {
+        end();
+        if( shouldCommit() ) {
+            operation = e.operation;
+            service = e.service;
+            url = e.url;
+            status = e.status;
+            bytes = e.bytes;
+            coalesced = e.coalesced;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event behind {@link ReloadEvent}. Only referenced when {@link Tracing#isEnabled()}.
+ *
+ * @author peter
+ */
+@Name("onl.area51.metoffice.Reload")
+@Label("Reload")
+@Category({"MetOffice", "Reload"})
+@Description("A reload of a service")
+final class JfrReloadEvent
+        extends Event
+{
+
+    @Label("Service")
+    String service;
+
+    @Label("Leader")
+    boolean leader;
+
+    @Label("Polled")
+    @Description("True if DataPoint was polled for a new issue")
+    boolean polled;
+
+    @Label("Issue")
+    String issue;
+
+    @Label("Items")
+    @Description("Number of images or regions in the issue")
+    int items;
+
+    @Label("Failures")
+    @Description("Number of images or regions that failed to be retrieved")
+    int failures;
+
+    static JfrReloadEvent start()
+    {
+        JfrReloadEvent event = new JfrReloadEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish( ReloadEvent e )
+    {
+        end();
+        if( shouldCommit() ) {
+            service = e.service;
+            leader = e.leader;
+            polled = e.polled;
+            issue = e.issue;
+            items = e.items;
+            failures = e.failures;
+            commit();
+        }
+    }
+}
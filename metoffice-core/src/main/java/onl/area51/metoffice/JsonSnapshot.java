@@ -0,0 +1,411 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * A compact binary snapshot of a json file in the cache.
+ * <p>
+ * Parsing json is slow so when a service reads a json file from the cache a binary snapshot is written alongside it with the suffix ".snap".
+ * Subsequent reads decode the snapshot instead, which avoids tokenising the text. The snapshot records the size and last modified time of the
+ * json it was made from so if the json is replaced the snapshot is ignored and rebuilt.
+ * <p>
+ * Format, all numbers big endian:
+ * <pre>
+ * magic    4 bytes "MODS"
+ * version  1 byte
+ * size     8 bytes size of the source json
+ * modified 8 bytes last modified time of the source json in milliseconds
+ * value    the root value
+ *
+ * value    1 byte tag followed by:
+ *          NULL, TRUE, FALSE   nothing
+ *          LONG                8 bytes
+ *          DECIMAL, STRING     string
+ *          ARRAY               4 byte count then count values
+ *          OBJECT              4 byte count then count string, value pairs
+ * string   4 byte length then UTF-8 bytes
+ * </pre>
+ * Snapshots are memory mapped when the filesystem supports it. Every length and count is checked against what remains of the snapshot before
+ * anything is allocated so a corrupt snapshot is treated as missing rather than failing the read.
+ *
+ * @author peter
+ */
+public final class JsonSnapshot
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final String SUFFIX = ".snap";
+    private static final int MAGIC = 0x4d4f4453;
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte LONG = 3;
+    private static final byte DECIMAL = 4;
+    private static final byte STRING = 5;
+    private static final byte ARRAY = 6;
+    private static final byte OBJECT = 7;
+
+    /**
+     * Deepest nesting we will decode, DataPoint's json is nowhere near this
+     */
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Json.createObjectBuilder() looks up the provider every time, which costs more than decoding, so use one factory
+     */
+    private static final JsonBuilderFactory BUILDERS = Json.createBuilderFactory( null );
+
+    private JsonSnapshot()
+    {
+    }
+
+    /**
+     * The path of the snapshot of a json file
+     *
+     * @param json json file
+     *
+     * @return Path of snapshot
+     */
+    public static Path getPath( Path json )
+    {
+        return json.resolveSibling( json.getFileName() + SUFFIX );
+    }
+
+    /**
+     * Read a json file from the cache, using its snapshot if it is present and current.
+     * <p>
+     * If the snapshot is missing or stale the json is parsed and a new snapshot written.
+     *
+     * @param json json file
+     *
+     * @return JsonObject
+     *
+     * @throws IOException             on failure
+     * @throws javax.json.JsonException if the json is invalid
+     */
+    public static JsonObject read( Path json )
+            throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes( json, BasicFileAttributes.class );
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+
+        Path snapshot = getPath( json );
+        JsonObject o = readSnapshot( snapshot, size, modified );
+        if( o == null ) {
+            try( JsonReader r = Json.createReader( Files.newBufferedReader( json ) ) ) {
+                o = r.readObject();
+            }
+
+            try {
+                write( snapshot, o, size, modified );
+            }
+            catch( IOException ex ) {
+                // Not fatal, we'll parse the json again next time
+                LOG.log( Level.WARNING, ex, () -> "Failed to write snapshot " + snapshot );
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Write the snapshot of a json file that has just been written to the cache
+     *
+     * @param json  json file
+     * @param value the content of the json file
+     *
+     * @throws IOException on failure
+     */
+    public static void write( Path json, JsonObject value )
+            throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes( json, BasicFileAttributes.class );
+        write( getPath( json ), value, attrs.size(), attrs.lastModifiedTime().toMillis() );
+    }
+
+    private static void write( Path snapshot, JsonObject value, long size, long modified )
+            throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try( DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( baos ) ) ) {
+            dos.writeInt( MAGIC );
+            dos.writeByte( VERSION );
+            dos.writeLong( size );
+            dos.writeLong( modified );
+            encode( dos, value );
+        }
+        CacheFiles.write( snapshot, baos.toByteArray() );
+    }
+
+    /**
+     * Read a snapshot
+     *
+     * @param snapshot snapshot file
+     * @param size     expected size of the source json
+     * @param modified expected last modified time of the source json
+     *
+     * @return JsonObject or null if the snapshot is missing, stale or invalid
+     */
+    private static JsonObject readSnapshot( Path snapshot, long size, long modified )
+    {
+        if( !Files.exists( snapshot, LinkOption.NOFOLLOW_LINKS ) ) {
+            return null;
+        }
+
+        try {
+            ByteBuffer b = map( snapshot );
+            if( b.getInt() != MAGIC || b.get() != VERSION || b.getLong() != size || b.getLong() != modified || b.get() != OBJECT ) {
+                return null;
+            }
+            return decodeObject( b, 0 ).build();
+        }
+        catch( IOException |
+               RuntimeException ex ) {
+            LOG.log( Level.WARNING, ex, () -> "Invalid snapshot " + snapshot );
+            return null;
+        }
+    }
+
+    private static ByteBuffer map( Path path )
+            throws IOException
+    {
+        try( FileChannel ch = FileChannel.open( path, StandardOpenOption.READ ) ) {
+            return ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() );
+        }
+        catch( UnsupportedOperationException ex ) {
+            // Filesystem doesn't support mapping
+            return ByteBuffer.wrap( Files.readAllBytes( path ) );
+        }
+    }
+
+    private static void encode( DataOutputStream dos, JsonValue v )
+            throws IOException
+    {
+        switch( v.getValueType() ) {
+            case OBJECT:
+                dos.writeByte( OBJECT );
+                JsonObject o = (JsonObject) v;
+                dos.writeInt( o.size() );
+                for( Map.Entry<String, JsonValue> e: o.entrySet() ) {
+                    encode( dos, e.getKey() );
+                    encode( dos, e.getValue() );
+                }
+                break;
+
+            case ARRAY:
+                dos.writeByte( ARRAY );
+                JsonArray a = (JsonArray) v;
+                dos.writeInt( a.size() );
+                for( JsonValue e: a ) {
+                    encode( dos, e );
+                }
+                break;
+
+            case STRING:
+                dos.writeByte( STRING );
+                encode( dos, ((JsonString) v).getString() );
+                break;
+
+            case NUMBER:
+                JsonNumber n = (JsonNumber) v;
+                if( n.isIntegral() ) {
+                    try {
+                        long l = n.longValueExact();
+                        dos.writeByte( LONG );
+                        dos.writeLong( l );
+                        break;
+                    }
+                    catch( ArithmeticException ex ) {
+                        // Too large so fall through to a decimal
+                    }
+                }
+                dos.writeByte( DECIMAL );
+                encode( dos, n.bigDecimalValue().toString() );
+                break;
+
+            case TRUE:
+                dos.writeByte( TRUE );
+                break;
+
+            case FALSE:
+                dos.writeByte( FALSE );
+                break;
+
+            default:
+                dos.writeByte( NULL );
+                break;
+        }
+    }
+
+    private static void encode( DataOutputStream dos, String s )
+            throws IOException
+    {
+        byte b[] = s.getBytes( StandardCharsets.UTF_8 );
+        dos.writeInt( b.length );
+        dos.write( b );
+    }
+
+    /**
+     * Read a length or count, checking there's enough of the snapshot left to hold it
+     *
+     * @param b       buffer
+     * @param minSize the smallest size in bytes of each item counted
+     *
+     * @return length
+     *
+     * @throws IllegalArgumentException if the length is invalid
+     */
+    private static int decodeLength( ByteBuffer b, int minSize )
+    {
+        int len = b.getInt();
+        if( len < 0 || (long) len * minSize > b.remaining() ) {
+            throw new IllegalArgumentException( "Invalid length " + len + " with " + b.remaining() + " bytes remaining" );
+        }
+        return len;
+    }
+
+    private static int checkDepth( int depth )
+    {
+        if( depth >= MAX_DEPTH ) {
+            throw new IllegalArgumentException( "Nested too deeply" );
+        }
+        return depth + 1;
+    }
+
+    private static String decodeString( ByteBuffer b )
+    {
+        int len = decodeLength( b, 1 );
+        if( b.hasArray() ) {
+            String s = new String( b.array(), b.arrayOffset() + b.position(), len, StandardCharsets.UTF_8 );
+            b.position( b.position() + len );
+            return s;
+        }
+        byte a[] = new byte[len];
+        b.get( a );
+        return new String( a, StandardCharsets.UTF_8 );
+    }
+
+    private static JsonObjectBuilder decodeObject( ByteBuffer b, int depth )
+    {
+        int d = checkDepth( depth );
+        JsonObjectBuilder o = BUILDERS.createObjectBuilder();
+        // Each entry is at least a key length and a tag
+        int count = decodeLength( b, 5 );
+        for( int i = 0; i < count; i++ ) {
+            String key = decodeString( b );
+            byte tag = b.get();
+            switch( tag ) {
+                case NULL:
+                    o.addNull( key );
+                    break;
+                case TRUE:
+                    o.add( key, true );
+                    break;
+                case FALSE:
+                    o.add( key, false );
+                    break;
+                case LONG:
+                    o.add( key, b.getLong() );
+                    break;
+                case DECIMAL:
+                    o.add( key, new BigDecimal( decodeString( b ) ) );
+                    break;
+                case STRING:
+                    o.add( key, decodeString( b ) );
+                    break;
+                case ARRAY:
+                    o.add( key, decodeArray( b, d ) );
+                    break;
+                case OBJECT:
+                    o.add( key, decodeObject( b, d ) );
+                    break;
+                default:
+                    throw new IllegalArgumentException( "Unknown tag " + tag );
+            }
+        }
+        return o;
+    }
+
+    private static JsonArrayBuilder decodeArray( ByteBuffer b, int depth )
+    {
+        int d = checkDepth( depth );
+        JsonArrayBuilder a = BUILDERS.createArrayBuilder();
+        // Each element is at least a tag
+        int count = decodeLength( b, 1 );
+        for( int i = 0; i < count; i++ ) {
+            byte tag = b.get();
+            switch( tag ) {
+                case NULL:
+                    a.addNull();
+                    break;
+                case TRUE:
+                    a.add( true );
+                    break;
+                case FALSE:
+                    a.add( false );
+                    break;
+                case LONG:
+                    a.add( b.getLong() );
+                    break;
+                case DECIMAL:
+                    a.add( new BigDecimal( decodeString( b ) ) );
+                    break;
+                case STRING:
+                    a.add( decodeString( b ) );
+                    break;
+                case ARRAY:
+                    a.add( decodeArray( b, d ) );
+                    break;
+                case OBJECT:
+                    a.add( decodeObject( b, d ) );
+                    break;
+                default:
+                    throw new IllegalArgumentException( "Unknown tag " + tag );
+            }
+        }
+        return a;
+    }
+}
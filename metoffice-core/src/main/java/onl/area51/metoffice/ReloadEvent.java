@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+/**
+ * Records a reload of a service, whether that polled DataPoint, followed the leader's manifest or found nothing to do, as a JFR event when
+ * {@link Tracing} is enabled.
+ *
+ * @author peter
+ */
+public final class ReloadEvent
+{
+
+    private final JfrReloadEvent event;
+
+    String service;
+    boolean leader;
+    boolean polled;
+    String issue;
+    int items;
+    int failures;
+
+    private ReloadEvent( JfrReloadEvent event )
+    {
+        this.event = event;
+    }
+
+    /**
+     * Start timing a reload
+     *
+     * @param service name of the service
+     *
+     * @return event
+     */
+    public static ReloadEvent start( String service )
+    {
+        ReloadEvent event = new ReloadEvent( Tracing.isEnabled() ? JfrReloadEvent.start() : null );
+        event.service = service;
+        return event;
+    }
+
+    public ReloadEvent setLeader( boolean leader )
+    {
+        this.leader = leader;
+        return this;
+    }
+
+    public ReloadEvent setPolled( boolean polled )
+    {
+        this.polled = polled;
+        return this;
+    }
+
+    public ReloadEvent setIssue( Object issue )
+    {
+        this.issue = issue == null ? null : issue.toString();
+        return this;
+    }
+
+    public ReloadEvent setItems( int items )
+    {
+        this.items = items;
+        return this;
+    }
+
+    public ReloadEvent setFailures( int failures )
+    {
+        this.failures = failures;
+        return this;
+    }
+
+    /**
+     * Finish timing the reload, committing the event if it is being recorded
+     */
+    public void finish()
+    {
+        if( event != null ) {
+            event.finish( this );
+        }
+    }
+}
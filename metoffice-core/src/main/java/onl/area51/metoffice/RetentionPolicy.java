@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.Predicate;
+
+/**
+ * Defines how long issues are retained under a prefix in the cache.
+ * <p>
+ * Issues are directories named by their issue time, e.g. layer/wxfcs/{layer}/{defaultTime} or txt/wxfcs/regionalforecast/{issuedAt}. The
+ * depth is the number of directory levels between the prefix and the issue directories, so 1 for layers and 0 for the text forecast.
+ *
+ * @author peter
+ */
+public class RetentionPolicy
+{
+
+    private final String name;
+    private final String prefix;
+    private final int depth;
+    private final int keep;
+    private final Duration maxAge;
+    private final Predicate<Path> inUse;
+
+    /**
+     * @param name   Name of the policy, used for configuration
+     * @param prefix Prefix within the cache
+     * @param depth  Directory levels between the prefix and the issue directories
+     * @param keep   Number of most recent issues to keep
+     * @param maxAge Maximum age of an issue, null for no limit
+     * @param inUse  Predicate returning true if an issue directory is in use so must never be removed
+     */
+    public RetentionPolicy( String name, String prefix, int depth, int keep, Duration maxAge, Predicate<Path> inUse )
+    {
+        this.name = name;
+        this.prefix = prefix;
+        this.depth = depth;
+        this.keep = keep;
+        this.maxAge = maxAge;
+        this.inUse = inUse;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    public int getKeep()
+    {
+        return keep;
+    }
+
+    public Duration getMaxAge()
+    {
+        return maxAge;
+    }
+
+    public boolean isInUse( Path path )
+    {
+        return inUse.test( path );
+    }
+
+}
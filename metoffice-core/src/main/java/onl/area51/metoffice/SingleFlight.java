@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical requests so that only one is made and its result shared by every caller.
+ * <p>
+ * A successful result is also kept for a short time after it completes so that requests made just after it are also satisfied without
+ * calling DataPoint again. Failures, including any Error, are shared with any concurrent callers but are not kept, so a flight is always
+ * completed and no caller is left waiting.
+ *
+ * @author peter
+ * @param <K> Type of key
+ * @param <V> Type of result
+ */
+public class SingleFlight<K, V>
+{
+
+    @FunctionalInterface
+    public interface Request<V>
+    {
+
+        V get()
+                throws IOException;
+    }
+
+    private final Map<K, Flight> flights = new ConcurrentHashMap<>();
+    private final long ttl;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param ttl Time in milliseconds a result is kept after it completes, 0 to only coalesce requests in flight
+     */
+    public SingleFlight( long ttl )
+    {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Number of requests actually made
+     *
+     * @return count
+     */
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Number of requests that were satisfied by another request
+     *
+     * @return count
+     */
+    public long getCoalesced()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * Get a result, sharing it with any other caller with the same key
+     *
+     * @param key     key
+     * @param request request to make if none is in flight
+     *
+     * @return result
+     *
+     * @throws IOException from the request
+     */
+    public V get( K key, Request<V> request )
+            throws IOException
+    {
+        Flight flight = new Flight();
+        for(;;) {
+            Flight existing = flights.putIfAbsent( key, flight );
+            if( existing == null ) {
+                break;
+            }
+            if( !existing.isExpired() ) {
+                coalesced.incrementAndGet();
+                return existing.get();
+            }
+            flights.remove( key, existing );
+        }
+
+        requests.incrementAndGet();
+        try {
+            V result = request.get();
+            flight.complete( result );
+            return result;
+        }
+        catch( IOException |
+               RuntimeException |
+               Error ex ) {
+            flights.remove( key, flight );
+            flight.fail( ex );
+            throw ex;
+        }
+        finally {
+            flights.values().removeIf( Flight::isExpired );
+        }
+    }
+
+    private class Flight
+    {
+
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        private volatile long expires = Long.MAX_VALUE;
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > expires;
+        }
+
+        void complete( V result )
+        {
+            expires = System.currentTimeMillis() + ttl;
+            future.complete( result );
+        }
+
+        void fail( Throwable ex )
+        {
+            future.completeExceptionally( ex );
+        }
+
+        V get()
+                throws IOException
+        {
+            try {
+                return future.get();
+            }
+            catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch( ExecutionException ex ) {
+                Throwable t = ex.getCause();
+                if( t instanceof IOException ) {
+                    throw (IOException) t;
+                }
+                if( t instanceof RuntimeException ) {
+                    throw (RuntimeException) t;
+                }
+                throw new UncheckedIOException( new IOException( t ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Tracks startup so we can report readiness and how long each stage took.
+ * <p>
+ * A component calls {@link #register(java.lang.String)} when it starts and {@link #ready(java.lang.String)} once it can serve requests,
+ * recording any stages in between with {@link #stage(java.lang.String, java.lang.String)}. Times are in milliseconds from when the JVM
+ * started. Once every registered component is ready the breakdown is logged.
+ * <p>
+ * Components register when they are created so to avoid reporting ready before a component has registered, every component implements
+ * {@link StartupComponent} and we are not ready until that many have registered.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class Startup
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    @Inject
+    private BeanManager beanManager;
+
+    private int expected;
+
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> stages = new LinkedHashMap<>();
+    private volatile long readyAt;
+
+    @PostConstruct
+    void start()
+    {
+        setExpected( beanManager.getBeans( StartupComponent.class ).size() );
+    }
+
+    /**
+     * Set the number of components that must register before we can be ready
+     *
+     * @param expected number of components
+     */
+    void setExpected( int expected )
+    {
+        this.expected = expected;
+    }
+
+    public void initialized( @Observes @Initialized(ApplicationScoped.class) Object init )
+    {
+        stage( "container", "initialized" );
+    }
+
+    /**
+     * Register a component that must be ready before we are
+     *
+     * @param component name of component
+     */
+    public synchronized void register( String component )
+    {
+        registered.add( component );
+        pending.add( component );
+        stage( component, "start" );
+    }
+
+    /**
+     * Record a stage of a component's startup
+     *
+     * @param component name of component
+     * @param stage     name of stage
+     */
+    public synchronized void stage( String component, String stage )
+    {
+        stages.putIfAbsent( component + "." + stage, System.currentTimeMillis() - jvmStart );
+    }
+
+    /**
+     * Mark a component as ready to serve requests. This can be called more than once.
+     *
+     * @param component name of component
+     */
+    public void ready( String component )
+    {
+        boolean nowReady;
+        synchronized( this ) {
+            if( !pending.remove( component ) ) {
+                return;
+            }
+            stage( component, "ready" );
+            nowReady = readyAt == 0 && pending.isEmpty() && registered.size() >= expected;
+            if( nowReady ) {
+                readyAt = System.currentTimeMillis() - jvmStart;
+            }
+        }
+
+        if( nowReady ) {
+            LOG.log( Level.INFO, this::getBreakdown );
+        }
+    }
+
+    public boolean isReady()
+    {
+        return readyAt > 0;
+    }
+
+    public synchronized JsonObjectBuilder toJson()
+    {
+        JsonArrayBuilder p = Json.createArrayBuilder();
+        pending.forEach( p::add );
+
+        JsonObjectBuilder s = Json.createObjectBuilder();
+        stages.forEach( s::add );
+
+        return Json.createObjectBuilder()
+                .add( "ready", isReady() )
+                .add( "readyAt", readyAt )
+                .add( "expected", expected )
+                .add( "registered", registered.size() )
+                .add( "pending", p )
+                .add( "stages", s );
+    }
+
+    private synchronized String getBreakdown()
+    {
+        return "Ready in " + readyAt + "ms: "
+               + stages.entrySet()
+                .stream()
+                .map( e -> e.getKey() + "=" + e.getValue() + "ms" )
+                .collect( Collectors.joining( ", " ) );
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+/**
+ * Marks a bean that registers with {@link Startup} and must be ready before we are.
+ * <p>
+ * Startup counts these beans when it is created so it does not report ready until every one of them has registered and reported ready,
+ * whatever order they are created in.
+ *
+ * @author peter
+ */
+public interface StartupComponent
+{
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Event fired when /api/modp/status.json is requested. Any bean can observe this event to add its own metrics to the response.
+ *
+ * @author peter
+ */
+public class Status
+{
+
+    private final JsonObjectBuilder builder = Json.createObjectBuilder();
+
+    /**
+     * Add a section to the status
+     *
+     * @param name    name of the section
+     * @param section content
+     *
+     * @return this
+     */
+    public synchronized Status add( String name, JsonObjectBuilder section )
+    {
+        builder.add( name, section );
+        return this;
+    }
+
+    public synchronized JsonObjectBuilder toJson()
+    {
+        return builder;
+    }
+}
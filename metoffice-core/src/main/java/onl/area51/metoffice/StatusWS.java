@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.util.function.Supplier;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import onl.area51.httpd.HttpRequestHandlerBuilder;
+import onl.area51.httpd.action.ActionRegistry;
+import onl.area51.httpd.rest.JsonEntity;
+import org.apache.http.HttpEntity;
+
+/**
+ * Handles the /api/modp/status.json endpoint which returns the metrics of each component.
+ * <p>
+ * The content is built by firing a {@link Status} event so each component adds its own section.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class StatusWS
+{
+
+    private static final String PREFIX = "/api/modp";
+
+    @Inject
+    private Event<Status> statusEvent;
+
+    public void deploy( @Observes ActionRegistry registry )
+    {
+        registry.registerHandler( PREFIX + "/status.json",
+                                  HttpRequestHandlerBuilder.create()
+                                  .unscoped()
+                                  .method( "GET" )
+                                  .sendOk( (Supplier) this::sendStatus )
+                                  .end()
+                                  .build() );
+    }
+
+    protected HttpEntity sendStatus()
+    {
+        Status status = new Status();
+        statusEvent.fire( status );
+        return new JsonEntity( status.toJson() );
+    }
+}
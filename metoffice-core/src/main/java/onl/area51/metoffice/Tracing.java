@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+/**
+ * Guards the JFR events so tracing is optional.
+ * <p>
+ * JFR is only present in Java 8 from 8u262, and in 11 onwards. Each event is a plain class that only creates its JFR event, a separate class
+ * extending jdk.jfr.Event, when {@link #isEnabled()} so on a JVM without JFR the JFR classes are never loaded and tracing does nothing.
+ *
+ * @author peter
+ */
+public final class Tracing
+{
+
+    private static final boolean ENABLED = isAvailable();
+
+    private Tracing()
+    {
+    }
+
+    private static boolean isAvailable()
+    {
+        try {
+            Class.forName( "jdk.jfr.Event", false, Tracing.class.getClassLoader() );
+            return !Boolean.getBoolean( "metoffice.tracing.disabled" );
+        }
+        catch( ClassNotFoundException |
+               LinkageError ex ) {
+            return false;
+        }
+    }
+
+    /**
+     * Are JFR events recorded
+     *
+     * @return true if JFR is available and tracing has not been disabled with -Dmetoffice.tracing.disabled=true
+     */
+    public static boolean isEnabled()
+    {
+        return ENABLED;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import uk.trainwatch.util.Functions;
+import uk.trainwatch.util.JsonUtils;
+import uk.trainwatch.util.config.Configuration;
+import uk.trainwatch.util.config.ConfigurationService;
+
+/**
+ * A bounded broadcast feed of updates made to the cache so that clients outside of the JVM can see when something has changed.
+ * <p>
+ * Publishers never block: the feed is a fixed size ring so once full the oldest update is overwritten. Subscribers poll with the sequence
+ * number of the last update they have seen and, if nothing newer is available, may wait a short time for one to arrive. A subscriber that has
+ * fallen so far behind that updates have been overwritten is told to reset and refetch whatever it is interested in.
+ * <p>
+ * Configuration: An optional JsonObject called "updates" within the "metoffice" configuration with the following parameters:
+ * <table>
+ * <tr><th>Parameter</th><th>Type</th><th>Required</th><th>Purpose</th></tr>
+ * <tr><td>capacity</td><td>Long</td><td>No (1024)</td><td>Number of updates retained</td></tr>
+ * <tr><td>timeout</td><td>Long</td><td>No (30)</td><td>Maximum seconds a subscriber will wait for an update</td></tr>
+ * <tr><td>maxWaiters</td><td>Long</td><td>No (64)</td><td>Maximum number of subscribers that can wait at the same time</td></tr>
+ * </table>
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class UpdateFeed
+{
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int DEFAULT_TIMEOUT = 30;
+    private static final int DEFAULT_MAX_WAITERS = 64;
+
+    @Inject
+    private ConfigurationService configurationService;
+
+    private final Object lock = new Object();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private Update ring[];
+    private long sequence;
+    private long timeout;
+    private int maxWaiters;
+
+    @PostConstruct
+    void start()
+    {
+        Configuration config = configurationService.getConfiguration( "metoffice" ).getConfiguration( "updates" );
+        ring = new Update[(int) config.getLong( "capacity", DEFAULT_CAPACITY )];
+        timeout = TimeUnit.SECONDS.toMillis( config.getLong( "timeout", DEFAULT_TIMEOUT ) );
+        maxWaiters = (int) config.getLong( "maxWaiters", DEFAULT_MAX_WAITERS );
+    }
+
+    /**
+     * Publish an update. This never blocks on subscribers.
+     *
+     * @param type  The type of update, e.g. "layer"
+     * @param name  The name of the item updated
+     * @param value The new value, e.g. the issue time
+     */
+    public void publish( String type, String name, String value )
+    {
+        synchronized( lock ) {
+            sequence++;
+            ring[(int) (sequence % ring.length)] = new Update( sequence, type, name, value );
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The sequence number of the most recent update
+     *
+     * @return sequence, 0 if nothing has been published
+     */
+    public long getSequence()
+    {
+        synchronized( lock ) {
+            return sequence;
+        }
+    }
+
+    /**
+     * Retrieve all updates after a sequence number, waiting up to the configured timeout if there are none.
+     *
+     * @param since sequence number of the last update seen by the subscriber
+     * @param wait  true to wait for an update if none are available
+     *
+     * @return Updates
+     *
+     * @throws InterruptedException if interrupted whilst waiting
+     */
+    public Updates since( long since, boolean wait )
+            throws InterruptedException
+    {
+        boolean waiting = wait && waiters.incrementAndGet() <= maxWaiters;
+        try {
+            synchronized( lock ) {
+                long deadline = System.currentTimeMillis() + timeout;
+                long remaining = timeout;
+                while( waiting && since == sequence && remaining > 0 ) {
+                    lock.wait( remaining );
+                    remaining = deadline - System.currentTimeMillis();
+                }
+
+                // A sequence ahead of ours means we have restarted, one older than the ring means updates have been lost
+                long oldest = Math.max( 1, sequence - ring.length + 1 );
+                if( since > sequence || since < oldest - 1 ) {
+                    return new Updates( sequence, true, Collections.emptyList() );
+                }
+
+                List<Update> updates = new ArrayList<>( (int) (sequence - since) );
+                for( long s = since + 1; s <= sequence; s++ ) {
+                    updates.add( ring[(int) (s % ring.length)] );
+                }
+                return new Updates( sequence, false, updates );
+            }
+        }
+        finally {
+            if( wait ) {
+                waiters.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A single update
+     */
+    public static class Update
+    {
+
+        private final long sequence;
+        private final LocalDateTime time;
+        private final String type;
+        private final String name;
+        private final String value;
+
+        private Update( long sequence, String type, String name, String value )
+        {
+            this.sequence = sequence;
+            this.time = LocalDateTime.now();
+            this.type = type;
+            this.name = name;
+            this.value = value;
+        }
+
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        public LocalDateTime getTime()
+        {
+            return time;
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+
+        public JsonObjectBuilder toJson()
+        {
+            JsonObjectBuilder b = Json.createObjectBuilder()
+                    .add( "seq", sequence )
+                    .add( "type", type );
+            JsonUtils.add( b, "time", time );
+            if( name != null ) {
+                b.add( "name", name );
+            }
+            if( value != null ) {
+                b.add( "value", value );
+            }
+            return b;
+        }
+    }
+
+    /**
+     * The result of polling the feed
+     */
+    public static class Updates
+    {
+
+        private final long sequence;
+        private final boolean reset;
+        private final List<Update> updates;
+
+        private Updates( long sequence, boolean reset, List<Update> updates )
+        {
+            this.sequence = sequence;
+            this.reset = reset;
+            this.updates = updates;
+        }
+
+        /**
+         * The sequence the subscriber should use in its next poll
+         *
+         * @return sequence
+         */
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * Has the subscriber missed updates so it must refetch everything
+         *
+         * @return true if reset required
+         */
+        public boolean isReset()
+        {
+            return reset;
+        }
+
+        public List<Update> getUpdates()
+        {
+            return updates;
+        }
+
+        public JsonObjectBuilder toJson()
+        {
+            return Json.createObjectBuilder()
+                    .add( "seq", sequence )
+                    .add( "reset", reset )
+                    .add( "updates", updates.stream()
+                          .reduce( Json.createArrayBuilder(),
+                                   ( a, u ) -> a.add( u.toJson() ),
+                                   Functions.writeOnceBinaryOperator() ) );
+        }
+    }
+}
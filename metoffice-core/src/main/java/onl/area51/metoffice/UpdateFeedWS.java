@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import onl.area51.httpd.HttpRequestHandlerBuilder;
+import onl.area51.httpd.action.ActionRegistry;
+import onl.area51.httpd.action.Request;
+import onl.area51.httpd.rest.JsonEntity;
+import org.apache.http.HttpEntity;
+
+/**
+ * Handles the /api/modp/updates.json and /api/modp/updates/* long poll endpoints.
+ * <p>
+ * /api/modp/updates.json returns immediately with the current sequence number.
+ * <p>
+ * /api/modp/updates/{seq}.json returns all updates after seq, waiting for one if none are available. The response contains the sequence to
+ * use in the next poll and if "reset" is true the client has missed updates so should refetch what it's interested in.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class UpdateFeedWS
+{
+
+    private static final String PREFIX = "/api/modp";
+
+    @Inject
+    private UpdateFeed updateFeed;
+
+    public void deploy( @Observes ActionRegistry registry )
+    {
+        registry.registerHandler( PREFIX + "/updates.json",
+                                  HttpRequestHandlerBuilder.create()
+                                  .unscoped()
+                                  .method( "GET" )
+                                  .sendOk( (Supplier) this::sendSequence )
+                                  .end()
+                                  .build() )
+                .registerHandler( PREFIX + "/updates/*",
+                                  HttpRequestHandlerBuilder.create()
+                                  .unscoped()
+                                  .method( "GET" )
+                                  .add( this::extractSequence )
+                                  .ifAttributePresentSendOk( "since", this::sendUpdates )
+                                  .end()
+                                  .build() );
+    }
+
+    protected void extractSequence( Request r )
+            throws IOException
+    {
+        // ../updates/seq.json
+        if( r.getPathLength() == 5 ) {
+            String seq = r.getPath( 4 );
+            if( seq.endsWith( ".json" ) ) {
+                try {
+                    r.setAttribute( "since", Long.parseLong( seq.replace( ".json", "" ) ) );
+                }
+                catch( NumberFormatException ex ) {
+                    // Ignore, results in a 404
+                }
+            }
+        }
+    }
+
+    protected HttpEntity sendSequence()
+    {
+        try {
+            return new JsonEntity( updateFeed.since( updateFeed.getSequence(), false ).toJson() );
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    protected HttpEntity sendUpdates( String attr, Request request )
+    {
+        try {
+            long since = request.getAttribute( attr );
+            return new JsonEntity( updateFeed.since( since, true ).toJson() );
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
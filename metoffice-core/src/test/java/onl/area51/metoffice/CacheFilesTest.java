@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link CacheFiles}
+ *
+ * @author peter
+ */
+public class CacheFilesTest
+{
+
+    private static final byte PNG[] = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n',
+                                       1, 2, 3,
+                                       0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xae, 0x42, 0x60, (byte) 0x82};
+
+    private Path dir;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        dir = Files.createTempDirectory( "cache" );
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        try( Stream<Path> s = Files.walk( dir ) ) {
+            s.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+        }
+    }
+
+    @Test
+    public void written()
+            throws IOException
+    {
+        Path path = dir.resolve( "0.png" );
+        assertFalse( CacheFiles.isValid( path ) );
+        CacheFiles.write( path, PNG );
+        assertTrue( CacheFiles.isValid( path ) );
+    }
+
+    @Test
+    public void truncated()
+            throws IOException
+    {
+        Path png = dir.resolve( "0.png" );
+        Files.write( png, Arrays.copyOf( PNG, PNG.length - 1 ) );
+        assertFalse( CacheFiles.isValid( png ) );
+
+        Path json = dir.resolve( "0.json" );
+        Files.write( json, "{\"a\":".getBytes( StandardCharsets.UTF_8 ) );
+        assertFalse( CacheFiles.isValid( json ) );
+
+        Path empty = dir.resolve( "0.snap" );
+        Files.write( empty, new byte[0] );
+        assertFalse( CacheFiles.isValid( empty ) );
+    }
+
+    @Test
+    public void checkedAgainWhenChanged()
+            throws IOException
+    {
+        Path path = dir.resolve( "0.png" );
+        CacheFiles.write( path, PNG );
+        assertTrue( CacheFiles.isValid( path ) );
+
+        // Replaced outside of CacheFiles, e.g. by an older version
+        Files.write( path, Arrays.copyOf( PNG, 12 ) );
+        Files.setLastModifiedTime( path, FileTime.fromMillis( System.currentTimeMillis() + 1000 ) );
+        assertFalse( CacheFiles.isValid( path ) );
+    }
+
+    @Test
+    public void deleteStale()
+            throws IOException
+    {
+        Path issue = Files.createDirectories( dir.resolve( "layer" ).resolve( "2016-04-11T15:00:00" ) );
+        Path stale = issue.resolve( ".0.png.1234abcd.tmp" );
+        Path recent = issue.resolve( ".1.png.5678abcd.tmp" );
+        Path image = issue.resolve( "0.png" );
+        Files.write( stale, PNG );
+        Files.write( recent, PNG );
+        Files.write( image, PNG );
+        long old = System.currentTimeMillis() - Duration.ofHours( 2 ).toMillis();
+        Files.setLastModifiedTime( stale, FileTime.fromMillis( old ) );
+        Files.setLastModifiedTime( image, FileTime.fromMillis( old ) );
+
+        assertEquals( 1, CacheFiles.deleteStale( dir, Duration.ofHours( 1 ) ) );
+        assertFalse( Files.exists( stale ) );
+        assertTrue( Files.exists( recent ) );
+        assertTrue( Files.exists( image ) );
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests two {@link ClusterCoordinator}'s sharing a directory, as two nodes sharing a cache would
+ *
+ * @author peter
+ */
+public class ClusterCoordinatorTest
+{
+
+    private static final long LEASE = 1000;
+    private static final long SETTLE = 50;
+
+    private Path dir;
+    private ClusterCoordinator a;
+    private ClusterCoordinator b;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        dir = Files.createTempDirectory( "cluster" );
+        a = create( "a" );
+        b = create( "b" );
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        try( Stream<Path> s = Files.walk( dir ) ) {
+            s.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+        }
+    }
+
+    private ClusterCoordinator create( String nodeId )
+    {
+        return create( nodeId, SETTLE );
+    }
+
+    private ClusterCoordinator create( String nodeId, long settle )
+    {
+        ClusterCoordinator c = new ClusterCoordinator();
+        c.configure( true, nodeId, LEASE, settle, dir::resolve );
+        return c;
+    }
+
+    @Test
+    public void onlyOneLeader()
+    {
+        assertTrue( a.isLeader() );
+        assertFalse( b.isLeader() );
+        assertTrue( a.isLeader() );
+    }
+
+    @Test
+    public void takeOverWhenExpired()
+            throws InterruptedException
+    {
+        assertTrue( a.isLeader() );
+        assertFalse( b.isLeader() );
+
+        // a has stopped without releasing the lease
+        Thread.sleep( LEASE + 100 );
+
+        assertTrue( b.isLeader() );
+        assertFalse( a.isLeader() );
+    }
+
+    @Test
+    public void takeOverWhenReleased()
+    {
+        assertTrue( a.isLeader() );
+        assertFalse( b.isLeader() );
+
+        a.stop();
+
+        assertTrue( b.isLeader() );
+        assertFalse( a.isLeader() );
+    }
+
+    @Test
+    public void renewedDuringLongReload()
+            throws InterruptedException
+    {
+        assertTrue( a.isLeader() );
+
+        // A reload taking three times the lease, with the background renewal running
+        long end = System.currentTimeMillis() + 3 * LEASE;
+        while( System.currentTimeMillis() < end ) {
+            Thread.sleep( LEASE / 4 );
+            a.renew();
+            assertFalse( b.isLeader() );
+        }
+
+        assertTrue( a.isLeader() );
+    }
+
+    @Test
+    public void notBlockedWhilstSettling()
+            throws Exception
+    {
+        ClusterCoordinator c = create( "c", 1000 );
+        CompletableFuture<Boolean> taking = CompletableFuture.supplyAsync( c::isLeader );
+        Thread.sleep( 100 );
+
+        // Whilst the lease is being taken anyone else asking is answered straight away
+        long start = System.nanoTime();
+        assertFalse( c.isLeader() );
+        assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) < 100 );
+
+        assertTrue( taking.get( 5, TimeUnit.SECONDS ) );
+        assertTrue( c.isLeader() );
+    }
+
+    @Test
+    public void followerReadsManifest()
+            throws IOException
+    {
+        assertTrue( a.isLeader() );
+        a.writeManifest( "test", Json.createObjectBuilder().add( "issue", "2016-04-11T15:00:00" ) );
+
+        JsonObject manifest = b.readManifest( "test" );
+        assertNotNull( manifest );
+        assertEquals( "2016-04-11T15:00:00", manifest.getString( "issue" ) );
+
+        // Only returned again once it has been rewritten
+        assertNull( b.readManifest( "test" ) );
+        assertNull( a.readManifest( "test" ) );
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link IssueSchedule} learns when issues become available and restores what it learned
+ *
+ * @author peter
+ */
+public class IssueScheduleTest
+{
+
+    private static final LocalDateTime ISSUE = LocalDateTime.of( 2016, 4, 11, 15, 0 );
+
+    private IssueSchedule create()
+    {
+        return new IssueSchedule( Duration.ofHours( 3 ), Duration.ofMinutes( 1 ), Duration.ofMinutes( 15 ) );
+    }
+
+    @Test
+    public void delayIsWhenLastUnavailable()
+    {
+        IssueSchedule s = create();
+        s.issued( ISSUE, ISSUE.plusMinutes( 20 ) );
+
+        // The next issue became available between the poll at 18:25 that didn't see it and 18:40 when we did
+        LocalDateTime next = ISSUE.plusHours( 3 );
+        s.unchanged( next.plusMinutes( 10 ) );
+        s.unchanged( next.plusMinutes( 25 ) );
+        s.issued( next, next.plusMinutes( 40 ) );
+
+        assertEquals( next.plusHours( 3 ).plusMinutes( 25 ), s.getExpected() );
+    }
+
+    @Test
+    public void delayUnknownIfNotPolledAfterIssue()
+    {
+        IssueSchedule s = create();
+        s.issued( ISSUE, ISSUE.plusMinutes( 20 ) );
+
+        LocalDateTime next = ISSUE.plusHours( 3 );
+        s.unchanged( next.minusMinutes( 5 ) );
+        s.issued( next, next.plusMinutes( 40 ) );
+
+        assertEquals( next.plusHours( 3 ), s.getExpected() );
+    }
+
+    @Test
+    public void historyRestored()
+    {
+        IssueSchedule s = create();
+        s.issued( ISSUE, ISSUE );
+        LocalDateTime next = ISSUE.plusHours( 6 );
+        s.unchanged( next.plusMinutes( 30 ) );
+        s.issued( next, next.plusMinutes( 31 ) );
+
+        IssueSchedule restored = create();
+        restored.setHistory( s.getHistory().build() );
+        assertNull( restored.getExpected() );
+
+        // Once the first poll after a restart sees the current issue the next is expected using the restored history
+        restored.issued( next, next.plusHours( 1 ) );
+        assertEquals( s.getExpected(), restored.getExpected() );
+    }
+
+    @Test
+    public void retryBacksOff()
+    {
+        IssueSchedule s = create();
+
+        // DataPoint is down so the first poll fails
+        LocalDateTime now = ISSUE;
+        s.retry( now );
+        assertFalse( s.shouldPoll( now.plusSeconds( 59 ) ) );
+        assertTrue( s.shouldPoll( now.plusMinutes( 1 ) ) );
+
+        now = now.plusMinutes( 1 );
+        s.retry( now );
+        assertFalse( s.shouldPoll( now.plusMinutes( 1 ) ) );
+        assertTrue( s.shouldPoll( now.plusMinutes( 2 ) ) );
+
+        // Never backs off beyond the maximum
+        for( int i = 0; i < 10; i++ ) {
+            s.retry( now );
+        }
+        assertFalse( s.shouldPoll( now.plusMinutes( 14 ) ) );
+        assertTrue( s.shouldPoll( now.plusMinutes( 15 ) ) );
+
+        // Once it has been retrieved a later failure retries shortly again
+        s.issued( ISSUE, now );
+        s.completed();
+        s.retry( now );
+        assertTrue( s.shouldPoll( now.plusMinutes( 1 ) ) );
+    }
+
+    @Test
+    public void missingHistoryIgnored()
+    {
+        IssueSchedule s = create();
+        s.setHistory( null );
+        s.issued( ISSUE, ISSUE );
+        assertEquals( ISSUE.plusHours( 3 ), s.getExpected() );
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the time and allocation of loading a regional forecast by parsing its json against decoding its {@link JsonSnapshot}.
+ * <p>
+ * This is slow so it is skipped unless asked for:
+ * <pre>
+ * mvn test -Dtest=JsonSnapshotBenchmark -Dbenchmark=true
+ * </pre>
+ *
+ * @author peter
+ */
+public class JsonSnapshotBenchmark
+{
+
+    private static final int REGIONS = 16;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1000;
+
+    private Path dir;
+    private Path[] files;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        Assume.assumeTrue( Boolean.getBoolean( "benchmark" ) );
+
+        dir = Files.createTempDirectory( "snapshot" );
+        files = new Path[REGIONS];
+        for( int i = 0; i < REGIONS; i++ ) {
+            files[i] = dir.resolve( (500 + i) + ".json" );
+            Files.write( files[i], createForecast( 500 + i ).toString().getBytes( StandardCharsets.UTF_8 ) );
+            // Create the snapshot
+            JsonSnapshot.read( files[i] );
+        }
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        if( dir != null ) {
+            try( Stream<Path> s = Files.walk( dir ) ) {
+                s.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+            }
+        }
+    }
+
+    @Test
+    public void compare()
+            throws IOException
+    {
+        for( Path p: files ) {
+            assertEquals( parse( p ), JsonSnapshot.read( p ) );
+        }
+
+        Result json = measure( "json", this::parse );
+        Result snapshot = measure( "snapshot", JsonSnapshot::read );
+
+        System.out.println( json );
+        System.out.println( snapshot );
+        System.out.printf( "snapshot/json time %.2f allocation %.2f%n",
+                           (double) snapshot.nanos / json.nanos,
+                           (double) snapshot.bytes / json.bytes );
+    }
+
+    @FunctionalInterface
+    private interface Loader
+    {
+
+        JsonObject load( Path path )
+                throws IOException;
+    }
+
+    private static class Result
+    {
+
+        private final String name;
+        private final long nanos;
+        private final long bytes;
+
+        private Result( String name, long nanos, long bytes )
+        {
+            this.name = name;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            long loads = (long) ITERATIONS * REGIONS;
+            return String.format( "%-8s %8dus per load %10d bytes allocated per load",
+                                  name, TimeUnit.NANOSECONDS.toMicros( nanos / loads ), bytes / loads );
+        }
+    }
+
+    private Result measure( String name, Loader loader )
+            throws IOException
+    {
+        for( int i = 0; i < WARMUP; i++ ) {
+            loadAll( loader );
+        }
+
+        long bytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        for( int i = 0; i < ITERATIONS; i++ ) {
+            loadAll( loader );
+        }
+        return new Result( name, System.nanoTime() - start, getAllocatedBytes() - bytes );
+    }
+
+    private void loadAll( Loader loader )
+            throws IOException
+    {
+        for( Path p: files ) {
+            assertNotNull( loader.load( p ) );
+        }
+    }
+
+    private JsonObject parse( Path path )
+            throws IOException
+    {
+        try( JsonReader r = Json.createReader( Files.newBufferedReader( path ) ) ) {
+            return r.readObject();
+        }
+    }
+
+    private static long getAllocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes( Thread.currentThread().getId() );
+    }
+
+    /**
+     * A forecast the same shape and size as a DataPoint regional text forecast
+     *
+     * @param id region id
+     *
+     * @return forecast
+     */
+    private static JsonObject createForecast( int id )
+    {
+        JsonArrayBuilder periods = Json.createArrayBuilder();
+        for( int p = 0; p < 3; p++ ) {
+            JsonArrayBuilder paragraphs = Json.createArrayBuilder();
+            for( int i = 0; i < 6; i++ ) {
+                paragraphs.add( Json.createObjectBuilder()
+                        .add( "title", "Paragraph " + i + ":" )
+                        .add( "$", "Rather cloudy with outbreaks of rain, heavy in places, clearing eastwards later. "
+                                   + "Maximum temperature " + (10 + i) + " C. Fresh southwesterly winds." ) );
+            }
+            periods.add( Json.createObjectBuilder()
+                    .add( "id", "day" + (p + 1) )
+                    .add( "Paragraph", paragraphs ) );
+        }
+
+        return Json.createObjectBuilder()
+                .add( "RegionalFcst", Json.createObjectBuilder()
+                      .add( "createdOn", "2016-04-11T16:06:11" )
+                      .add( "issuedAt", "2016-04-11T16:00:00" )
+                      .add( "regionId", "r" + id )
+                      .add( "FcstPeriods", Json.createObjectBuilder()
+                            .add( "Period", periods ) ) )
+                .build();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link JsonSnapshot} round trips json and falls back to the json when the snapshot is corrupt
+ *
+ * @author peter
+ */
+public class JsonSnapshotTest
+{
+
+    /**
+     * Offset of the root object's entry count: magic, version, size, modified then the root tag
+     */
+    private static final int ROOT_COUNT = 4 + 1 + 8 + 8 + 1;
+
+    private static final JsonObject FORECAST = Json.createObjectBuilder()
+            .add( "RegionalFcst", Json.createObjectBuilder()
+                  .add( "createdOn", "2016-04-11T16:06:11" )
+                  .add( "issuedAt", "2016-04-11T16:00:00" )
+                  .add( "regionId", "os" )
+                  .add( "id", 514L )
+                  .add( "scale", 1.25 )
+                  .add( "large", new BigDecimal( "123456789012345678901234567890" ) )
+                  .add( "current", true )
+                  .add( "stale", false )
+                  .addNull( "missing" )
+                  .add( "Paragraph", Json.createArrayBuilder()
+                        .add( Json.createObjectBuilder()
+                              .add( "title", "Headline:" )
+                              .add( "$", "Showers, heavy at times, 12\u00b0C \u2014 unicode too." ) )
+                        .add( 42L )
+                        .addNull()
+                        .add( Json.createArrayBuilder().add( "nested" ) ) ) )
+            .build();
+
+    private Path dir;
+    private Path json;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        dir = Files.createTempDirectory( "snapshot" );
+        json = dir.resolve( "514.json" );
+        Files.write( json, FORECAST.toString().getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        try( Stream<Path> s = Files.walk( dir ) ) {
+            s.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+        }
+    }
+
+    @Test
+    public void roundTrip()
+            throws IOException
+    {
+        assertEquals( FORECAST, JsonSnapshot.read( json ) );
+        assertTrue( Files.exists( JsonSnapshot.getPath( json ) ) );
+
+        // Second read comes from the snapshot
+        assertEquals( FORECAST, JsonSnapshot.read( json ) );
+    }
+
+    @Test
+    public void staleSnapshotIgnored()
+            throws IOException
+    {
+        JsonSnapshot.read( json );
+
+        JsonObject replaced = Json.createObjectBuilder().add( "replaced", true ).build();
+        Files.write( json, replaced.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+        assertEquals( replaced, JsonSnapshot.read( json ) );
+    }
+
+    @Test
+    public void negativeCount()
+            throws IOException
+    {
+        assertCorruptIgnored( ROOT_COUNT, -1 );
+    }
+
+    @Test
+    public void hugeCount()
+            throws IOException
+    {
+        assertCorruptIgnored( ROOT_COUNT, Integer.MAX_VALUE );
+    }
+
+    @Test
+    public void negativeStringLength()
+            throws IOException
+    {
+        // The first key's length follows the root count
+        assertCorruptIgnored( ROOT_COUNT + 4, -5 );
+    }
+
+    @Test
+    public void hugeStringLength()
+            throws IOException
+    {
+        assertCorruptIgnored( ROOT_COUNT + 4, Integer.MAX_VALUE );
+    }
+
+    @Test
+    public void truncated()
+            throws IOException
+    {
+        JsonSnapshot.read( json );
+        Path snapshot = JsonSnapshot.getPath( json );
+        byte b[] = Files.readAllBytes( snapshot );
+        Files.write( snapshot, Arrays.copyOf( b, b.length / 2 ) );
+
+        assertEquals( FORECAST, JsonSnapshot.read( json ) );
+    }
+
+    /**
+     * Overwrite an int in the snapshot and check the json is read instead
+     *
+     * @param offset offset of the int
+     * @param value  value to write
+     *
+     * @throws IOException on failure
+     */
+    private void assertCorruptIgnored( int offset, int value )
+            throws IOException
+    {
+        JsonSnapshot.read( json );
+        Path snapshot = JsonSnapshot.getPath( json );
+        byte b[] = Files.readAllBytes( snapshot );
+        ByteBuffer.wrap( b ).putInt( offset, value );
+        Files.write( snapshot, b );
+
+        assertEquals( FORECAST, JsonSnapshot.read( json ) );
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link SingleFlight} always completes a flight so no caller is left waiting
+ *
+ * @author peter
+ */
+public class SingleFlightTest
+{
+
+    @Test
+    public void coalesced()
+            throws Exception
+    {
+        SingleFlight<String, String> flights = new SingleFlight<>( 0 );
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync( () -> get( flights, () -> {
+                                                                             started.countDown();
+                                                                             await( release );
+                                                                             return "result";
+                                                                         } ) );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+        CompletableFuture<String> second = CompletableFuture.supplyAsync( () -> get( flights, () -> "second" ) );
+        waitForCoalesced( flights );
+        release.countDown();
+
+        assertEquals( "result", first.get( 5, TimeUnit.SECONDS ) );
+        assertEquals( "result", second.get( 5, TimeUnit.SECONDS ) );
+        assertEquals( 1, flights.getRequests() );
+    }
+
+    @Test(timeout = 5000)
+    public void errorCompletesFlight()
+            throws Exception
+    {
+        SingleFlight<String, String> flights = new SingleFlight<>( 0 );
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync( () -> get( flights, () -> {
+                                                                             started.countDown();
+                                                                             await( release );
+                                                                             throw new OutOfMemoryError( "test" );
+                                                                         } ) );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+        CompletableFuture<String> waiter = CompletableFuture.supplyAsync( () -> get( flights, () -> "unused" ) );
+        waitForCoalesced( flights );
+        release.countDown();
+
+        // The caller making the request sees the Error, the one waiting on it fails rather than waiting forever
+        try {
+            first.get();
+            fail( "Expected OutOfMemoryError" );
+        }
+        catch( ExecutionException ex ) {
+            assertTrue( ex.getCause() instanceof OutOfMemoryError );
+        }
+        try {
+            waiter.get();
+            fail( "Expected failure" );
+        }
+        catch( ExecutionException ex ) {
+            assertTrue( ex.getCause() instanceof UncheckedIOException );
+        }
+
+        // The failed flight isn't kept so the next caller makes the request again
+        assertEquals( "again", flights.get( "key", () -> "again" ) );
+    }
+
+    private static void waitForCoalesced( SingleFlight<?, ?> flights )
+            throws InterruptedException
+    {
+        while( flights.getCoalesced() == 0 ) {
+            Thread.sleep( 1 );
+        }
+        // getCoalesced is counted just before the caller waits
+        Thread.sleep( 50 );
+    }
+
+    private static String get( SingleFlight<String, String> flights, SingleFlight.Request<String> request )
+    {
+        try {
+            return flights.get( "key", request );
+        }
+        catch( IOException ex ) {
+            throw new UncheckedIOException( ex );
+        }
+    }
+
+    private static void await( CountDownLatch latch )
+    {
+        try {
+            latch.await();
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
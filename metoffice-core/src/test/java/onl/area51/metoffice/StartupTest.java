@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Startup} reports ready, which is what /api/modp/health.json returns, only once every component can serve requests.
+ *
+ * @author peter
+ */
+public class StartupTest
+{
+
+    private Startup startup;
+
+    @Before
+    public void setUp()
+    {
+        startup = new Startup();
+        startup.setExpected( 2 );
+    }
+
+    @Test
+    public void notReadyUntilEveryComponentIsReady()
+    {
+        startup.register( "forecastLayer" );
+        startup.register( "regionalTextForecast" );
+        startup.ready( "forecastLayer" );
+        assertFalse( startup.isReady() );
+
+        startup.ready( "regionalTextForecast" );
+        assertTrue( startup.isReady() );
+    }
+
+    @Test
+    public void notReadyBeforeEveryComponentHasRegistered()
+    {
+        // The first component restores from the cache before the second has even been created
+        startup.register( "forecastLayer" );
+        startup.ready( "forecastLayer" );
+        assertFalse( startup.isReady() );
+
+        startup.register( "regionalTextForecast" );
+        assertFalse( startup.isReady() );
+
+        startup.ready( "regionalTextForecast" );
+        assertTrue( startup.isReady() );
+    }
+
+    @Test
+    public void readyIgnoresUnknownComponents()
+    {
+        startup.register( "forecastLayer" );
+        startup.ready( "unknown" );
+        startup.ready( "forecastLayer" );
+        assertFalse( startup.isReady() );
+    }
+}
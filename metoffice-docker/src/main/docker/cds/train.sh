@@ -0,0 +1,49 @@
+#!/bin/bash
+#
+# Training run for the class data sharing archive.
+#
+# The application is started with the minimal config in cds/etc, so it boots the same way it does in production but
+# never reaches the real DataPoint API, with its cache in a scratch directory. Whilst it runs the read-only endpoints are
+# requested once a second so the classes used to serve requests are archived as well as those used to start.
+#
+# The config is only present for the run so it does not end up in the image.
+#
+KERNEL=/opt/kernel
+SECONDS_TO_RUN=$1
+PORT=$2
+
+# Runs in a subshell so a refused connection whilst the application is still starting is not fatal
+get() (
+    exec 3<>/dev/tcp/127.0.0.1/$PORT && printf "GET %s HTTP/1.0\r\n\r\n" "$1" >&3 && cat <&3 >/dev/null
+)
+
+[ -d $KERNEL/etc ] && mv $KERNEL/etc $KERNEL/etc.image
+cp -r /tmp/cds/etc $KERNEL/etc
+
+FILESYSTEM_BASE=/tmp/cds/cache MODP_CDS=dump $KERNEL/bin/modp.sh &
+PID=$!
+
+i=0
+while [ $i -lt $SECONDS_TO_RUN ]
+do
+    sleep 1
+    for p in /api/modp/health.json /api/modp/status.json /api/modp/layer/wxfcs.json
+    do
+        get $p 2>/dev/null
+    done
+    i=$((i + 1))
+done
+
+kill $PID
+wait $PID
+
+rm -rf $KERNEL/etc /tmp/cds/cache
+[ -d $KERNEL/etc.image ] && mv $KERNEL/etc.image $KERNEL/etc
+
+if [ -f $KERNEL/modp.jsa ]
+then
+    echo "Created class data sharing archive"
+else
+    echo "No class data sharing archive created"
+fi
+true
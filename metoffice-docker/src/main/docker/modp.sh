@@ -0,0 +1,32 @@
+#!/bin/sh
+#
+# Launch the kernel using the jlink'd runtime.
+#
+# The filesystems in ext must be visible to the main classloader so they are first on the classpath. The kernel's launcher
+# jar follows so the Class-Path in its manifest is honoured, then the rest of the kernel and the application.
+#
+# The launcher jar and its Main-Class are read from the kernel image at build time into bin/launcher.
+#
+# The class data sharing archive is used when present. At build time MODP_CDS=dump creates it instead.
+#
+KERNEL=/opt/kernel
+ARCHIVE=$KERNEL/modp.jsa
+read LAUNCHER_JAR MAIN_CLASS < $KERNEL/bin/launcher
+CLASSPATH="$KERNEL/ext/*:$LAUNCHER_JAR:$KERNEL/lib/*:$KERNEL/lib/metoffice/*"
+
+CDS=""
+if [ "$MODP_CDS" = "dump" ]
+then
+    CDS="-XX:ArchiveClassesAtExit=$ARCHIVE"
+elif [ -f "$ARCHIVE" ]
+then
+    CDS="-XX:SharedArchiveFile=$ARCHIVE"
+fi
+
+exec /opt/jre/bin/java \
+    -Djava.awt.headless=true \
+    $CDS \
+    $JAVA_OPTS \
+    -cp "$CLASSPATH" \
+    $MAIN_CLASS \
+    "$@"
@@ -0,0 +1,70 @@
+#!/bin/sh
+#
+# Compare the startup time and memory of docker images.
+#
+# Usage: measure.sh [-n runs] [-p port] [-c config] image...
+#
+# Each image is started the given number of times. Startup is the time from "docker run" until
+# /api/modp/health.json returns 200, and RSS is the container's memory use once it is ready.
+# The config directory, if given, is mounted as /opt/kernel/etc.
+#
+# e.g. to compare the previous image with this one:
+#   measure.sh -c ./etc docker.area51.onl/area51/modp:previous docker.area51.onl/area51/modp:latest
+#
+RUNS=5
+PORT=8080
+CONFIG=""
+TIMEOUT=120
+
+while getopts "n:p:c:" opt
+do
+    case $opt in
+        n) RUNS=$OPTARG ;;
+        p) PORT=$OPTARG ;;
+        c) CONFIG="-v $(cd "$OPTARG" && pwd):/opt/kernel/etc:ro" ;;
+        *) echo "Usage: $0 [-n runs] [-p port] [-c config] image..." ; exit 1 ;;
+    esac
+done
+shift $((OPTIND - 1))
+
+if [ $# -eq 0 ]
+then
+    echo "Usage: $0 [-n runs] [-p port] [-c config] image..."
+    exit 1
+fi
+
+now() {
+    date +%s%3N
+}
+
+printf "%-50s %5s %10s %10s\n" "Image" "Run" "Ready(ms)" "RSS(MiB)"
+
+for IMAGE in "$@"
+do
+    docker image inspect "$IMAGE" --format "$IMAGE size {{.Size}} bytes" >&2
+
+    RUN=1
+    while [ $RUN -le $RUNS ]
+    do
+        START=$(now)
+        ID=$(docker run -d -p $PORT:$PORT $CONFIG "$IMAGE")
+
+        READY=""
+        while [ $(( $(now) - START )) -lt $(( TIMEOUT * 1000 )) ]
+        do
+            if [ "$(curl -s -o /dev/null -w '%{http_code}' http://localhost:$PORT/api/modp/health.json)" = "200" ]
+            then
+                READY=$(( $(now) - START ))
+                break
+            fi
+            sleep 0.05
+        done
+
+        RSS=$(docker stats --no-stream --format '{{.MemUsage}}' "$ID" | cut -d/ -f1)
+
+        printf "%-50s %5d %10s %10s\n" "$IMAGE" $RUN "${READY:-timeout}" "$RSS"
+
+        docker rm -f "$ID" >/dev/null
+        RUN=$((RUN + 1))
+    done
+done
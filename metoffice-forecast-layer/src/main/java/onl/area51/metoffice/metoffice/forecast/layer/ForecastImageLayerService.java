@@ -18,27 +18,54 @@ package onl.area51.metoffice.metoffice.forecast.layer;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
-import javax.enterprise.event.Event;
+import javax.enterprise.context.Initialized;
 import javax.enterprise.event.Observes;
 import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
-import onl.area51.httpd.action.ActionRegistry;
+import javax.json.JsonObjectBuilder;
+import onl.area51.metoffice.BackgroundExecutor;
+import onl.area51.metoffice.BlobStore;
+import onl.area51.metoffice.CacheFiles;
+import onl.area51.metoffice.CacheRetention;
+import onl.area51.metoffice.CircuitOpenException;
+import onl.area51.metoffice.ClusterCoordinator;
 import onl.area51.metoffice.DataPoint;
+import onl.area51.metoffice.DataPointException;
+import onl.area51.metoffice.DownloadResult;
+import onl.area51.metoffice.IssueSchedule;
+import onl.area51.metoffice.ReloadEvent;
+import onl.area51.metoffice.RetentionPolicy;
+import onl.area51.metoffice.Startup;
+import onl.area51.metoffice.StartupComponent;
+import onl.area51.metoffice.Status;
 import uk.trainwatch.scheduler.Cron;
 import uk.trainwatch.util.Functions;
+import uk.trainwatch.util.JsonUtils;
 
 /**
  *
@@ -46,32 +73,69 @@ import uk.trainwatch.util.Functions;
  */
 @ApplicationScoped
 public class ForecastImageLayerService
+        implements StartupComponent
 {
 
     private static final Logger LOG = Logger.getGlobal();
 
-    private static final String PREFIX = "layer/wxfcs";
+    static final String PREFIX = "layer/wxfcs";
     private static final String SERVICE_ALL = PREFIX + "/all";
+    private static final String NAME = "forecastLayer";
+    private static final String MANIFEST = NAME;
 
     @Inject
     private DataPoint dataPoint;
 
-    /**
-     * Event used to notify that a layer has been updated
-     */
     @Inject
-    private Event<Layer> layerEvent;
+    private CacheRetention cacheRetention;
+
+    @Inject
+    private FrameIndex frameIndex;
+
+    @Inject
+    private ClusterCoordinator clusterCoordinator;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private Startup startup;
+
+    private BlobStore blobStore;
 
     /**
-     * Event used to notify that a path has been updated
+     * Notifies observers of updated layers and paths without blocking retrieval
      */
     @Inject
-    private Event<Path> pathEvent;
+    private LayerEventDispatcher layerEventDispatcher;
 
     private String baseUrl;
     private Map<String, Layer> layers;
 
-    private LocalDateTime lastReload;
+    /**
+     * Layers being retrieved but not yet published
+     */
+    private volatile Map<String, Layer> staging;
+
+    /**
+     * Layers published before they were complete as there was no previous issue to serve
+     */
+    private final Set<String> incomplete = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Paths retrieved for each staged layer issue, keyed by layer name and defaultTime, that are notified once the issue is published
+     */
+    private final Map<String, List<Path>> unpublished = new ConcurrentHashMap<>();
+
+    private volatile LocalDateTime lastReload;
+
+    /**
+     * Layers are issued every 3 hours. Poll every minute when an issue is due backing off to 15 minutes
+     */
+    private final IssueSchedule schedule = new IssueSchedule( Duration.ofHours( 3 ), Duration.ofMinutes( 1 ), Duration.ofMinutes( 15 ) );
+
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private final AtomicLong reloadsCoalesced = new AtomicLong();
 
     public synchronized String getBaseUrl()
     {
@@ -85,57 +149,352 @@ public class ForecastImageLayerService
 
     public Layer getLayer( String name )
     {
-        return getLayers().get( name );
+        Map<String, Layer> l = getLayers();
+        return l == null ? null : l.get( name );
     }
 
-    public void deploy( @Observes ActionRegistry registry )
+    public void init( @Observes @Initialized(ApplicationScoped.class) Object init )
     {
-        // Do nothing, just ensure we start when the web server does
+        // Do nothing, just ensure we start with the application
     }
 
+    /**
+     * Start by serving whatever was last published from the cache. Checking DataPoint for anything newer is left to the background.
+     */
     @PostConstruct
     void start()
     {
-        new Thread( () -> {
+        startup.register( NAME );
+
+        blobStore = new BlobStore( dataPoint.getPath( "blob", PREFIX ) );
+
+        cacheRetention.register( new RetentionPolicy( NAME, PREFIX, 1, 2, Duration.ofDays( 1 ), this::isInUse ) );
+
+        readManifest();
+        startup.stage( NAME, "restored" );
+
+        backgroundExecutor.submit( NAME + " reload", this::reload );
+    }
+
+    /**
+     * Is a layer issue directory in the cache in use
+     *
+     * @param issue directory in the form layer/wxfcs/{layerName}/{defaultTime}
+     *
+     * @return true if it's the current or staged issue for the layer or we have not yet loaded the layers
+     */
+    private boolean isInUse( Path issue )
+    {
+        Map<String, Layer> l = getLayers();
+        return l == null || isIssue( l, issue ) || isIssue( staging, issue );
+    }
+
+    private static boolean isIssue( Map<String, Layer> layers, Path issue )
+    {
+        Layer layer = layers == null ? null : layers.get( issue.getParent().getFileName().toString() );
+        return layer != null && layer.getDefaultTime().equals( issue.getFileName().toString() );
+    }
+
+    /**
+     * Check for a new issue of the layers and retrieve it.
+     * <p>
+     * This runs every minute but the capabilities are only polled when the {@link IssueSchedule} expects a new issue, or when a previous
+     * retrieval failed. The images are only retrieved when a layer has a new defaultTime.
+     * <p>
+     * A new issue is staged: every image is retrieved before the layer is published so clients keep seeing the previous issue until the new
+     * one is complete. Once staged the manifest is written and the published layers are switched in one go.
+     * <p>
+     * If another node is the {@link ClusterCoordinator} leader then we don't call DataPoint but follow the manifest it writes instead.
+     *
+     * @throws IOException        on failure
+     * @throws URISyntaxException on failure
+     */
+    @Cron("0 * * * * ? *")
+    public void reload()
+            throws IOException,
+                   URISyntaxException
+    {
+        // Never run more than one reload at a time
+        if( !reloading.compareAndSet( false, true ) ) {
+            reloadsCoalesced.incrementAndGet();
+            LOG.log( Level.FINE, "Reload already in progress" );
+            return;
+        }
+
+        ReloadEvent event = ReloadEvent.start( NAME );
+        try {
+            // Issue times are UTC
+            LocalDateTime now = LocalDateTime.now( ZoneOffset.UTC );
+            boolean leader = clusterCoordinator.isLeader();
+            event.setLeader( leader );
+            if( !leader ) {
+                follow( now );
+                return;
+            }
+
+            if( !schedule.shouldPoll( now ) ) {
+                return;
+            }
+            event.setPolled( true );
+
+            JsonObject cap;
             try {
-                reload();
+                cap = dataPoint.call( SERVICE_ALL, "capabilities" ).getJsonObject( "Layers" );
             }
             catch( IOException |
-                   URISyntaxException ex ) {
-                LOG.log( Level.SEVERE, null, ex );
+                   URISyntaxException |
+                   RuntimeException ex ) {
+                // Back off rather than polling every minute during an outage
+                schedule.retry( now );
+                throw ex;
+            }
+            Map<String, Layer> newLayers = parseLayers( cap );
+
+            // Layers can be issued at different times so the issue is the latest of them
+            LocalDateTime issue = newLayers.values()
+                    .stream()
+                    .map( Layer::getDefaultDateTime )
+                    .filter( Objects::nonNull )
+                    .max( Comparator.naturalOrder() )
+                    .orElse( null );
+            event.setIssue( issue );
+
+            if( !schedule.isRetrying() && !schedule.isNew( issue ) && !isChanged( newLayers ) ) {
+                schedule.unchanged( now );
+                return;
+            }
+            schedule.issued( issue, now );
+
+            String newBaseUrl = cap.getJsonObject( "BaseUrl" ).getString( "$" );
+            staging = newLayers;
+
+            // Stage the new issue OUTSIDE the synchronized block, the published layers are untouched whilst we retrieve it
+            Map<String, Layer> current = getLayers();
+            Map<String, Layer> published = new HashMap<>();
+            Set<String> completed = new HashSet<>();
+            int failures = 0;
+            int images = 0;
+            for( Layer layer: newLayers.values() ) {
+                String layerName = layer.getLayerName();
+                int layerFailures = retrieveLayer( newBaseUrl, layer );
+                failures += layerFailures;
+                images += layer.getTimestep().length;
+
+                Layer old = current == null ? null : current.get( layerName );
+                if( layerFailures == 0 ) {
+                    published.put( layerName, layer );
+                    if( incomplete.remove( layerName ) ) {
+                        completed.add( layerName );
+                    }
+                }
+                else if( old == null ) {
+                    // Nothing else to serve so publish what we have
+                    published.put( layerName, layer );
+                    incomplete.add( layerName );
+                }
+                else {
+                    // Keep serving the previous issue until this one is complete
+                    published.put( layerName, old );
+                }
+            }
+
+            event.setItems( images ).setFailures( failures );
+
+            // Forget paths of any issue that has been superseded before it was published
+            Set<String> staged = newLayers.values().stream().map( ForecastImageLayerService::getKey ).collect( Collectors.toSet() );
+            unpublished.keySet().retainAll( staged );
+
+            // Another node took over whilst we were retrieving so leave publishing to it
+            if( !clusterCoordinator.isLeader() ) {
+                LOG.log( Level.WARNING, "No longer the leader, not publishing" );
+                staging = null;
+                unpublished.clear();
+                schedule.retry( now );
+                return;
+            }
+
+            publish( newBaseUrl, published, completed );
+
+            // If anything failed retry shortly. Anything we have already retrieved will not be retrieved again
+            if( failures == 0 ) {
+                staging = null;
+                schedule.completed();
+                lastReload = now;
+            }
+            else {
+                schedule.retry( now );
+                LOG.log( Level.WARNING, failures + " images failed, will retry" );
             }
-        } ).start();
+        }
+        finally {
+            reloading.set( false );
+            event.finish();
+        }
     }
 
-    @Cron("0 5/5 0/3 * * ? *")
-    public void reload()
-            throws IOException,
-                   URISyntaxException
+    /**
+     * Publish staged layers. The manifest is written first so followers switch to the same layers.
+     *
+     * @param baseUrl   base url of the layers
+     * @param published layers to publish
+     * @param completed names of layers previously published incomplete that are now complete
+     */
+    private void publish( String baseUrl, Map<String, Layer> published, Set<String> completed )
     {
-        LocalDateTime now = LocalDateTime.now();
+        // Layers published incomplete may have gained frames so followers need to reload their indices
+        if( !isChanged( published ) && completed.isEmpty() && incomplete.isEmpty() ) {
+            return;
+        }
 
-        // Only reload if our last reload was at least 2 hours ago
-        if( lastReload == null || Duration.between( lastReload, now ).getSeconds() > 3600 ) {
-            dataPoint.forEach( SERVICE_ALL, "capabilities", cap -> {
-                           // Reload our config
-                           reloadLayers( cap );
+        // The manifest uses the same form as the capabilities so it can be parsed the same way
+        JsonArrayBuilder a = Json.createArrayBuilder();
+        published.values().forEach( l -> a.add( l.getJson() ) );
+        try {
+            clusterCoordinator.writeManifest( MANIFEST, Json.createObjectBuilder()
+                                              .add( "baseUrl", baseUrl )
+                                              .add( "Layer", a )
+                                              .add( "schedule", schedule.getHistory() ) );
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.SEVERE, "Failed to write manifest", ex );
+        }
 
-                           // OUTSIDE the synchronized block load those layers then notify anyone of the update
-                           getLayers().values().forEach( this::retrieveLayer );
+        switchTo( baseUrl, published, completed );
+    }
 
-                           lastReload = now;
-                       }
-            );
+    /**
+     * Atomically switch the published layers then notify anyone of the paths retrieved for the published issues and the layers that have
+     * changed.
+     *
+     * @param baseUrl   base url of the layers
+     * @param published layers to publish
+     * @param completed names of layers to notify even if their issue is unchanged
+     */
+    private void switchTo( String baseUrl, Map<String, Layer> published, Set<String> completed )
+    {
+        Map<String, Layer> current = getLayers();
+        reloadLayers( baseUrl, Collections.unmodifiableMap( published ) );
+        startup.ready( NAME );
+
+        // Only the published and staged issues are served so forget any other index, a follower would otherwise keep every one it loaded
+        // Layers are equal by name so this must be a list to hold both the published and staged issue of a layer
+        List<Layer> live = new ArrayList<>( published.values() );
+        Map<String, Layer> s = staging;
+        if( s != null ) {
+            live.addAll( s.values() );
+        }
+        frameIndex.retain( live );
+
+        // Paths are only notified now so a client never sees an image of an issue that isn't yet published
+        published.values().forEach( l -> {
+            List<Path> paths = unpublished.remove( getKey( l ) );
+            if( paths != null ) {
+                paths.forEach( p -> layerEventDispatcher.path( l, p ) );
+            }
+        } );
+
+        published.values()
+                .stream()
+                .filter( l -> completed.contains( l.getLayerName() ) || isChanged( current, l ) )
+                .forEach( layerEventDispatcher::layer );
+    }
+
+    /**
+     * Refresh the layers from the leader's manifest. The images are already in the shared cache so there's nothing to retrieve.
+     *
+     * @param now current time
+     */
+    private void follow( LocalDateTime now )
+    {
+        if( readManifest() ) {
+            lastReload = now;
+        }
+    }
+
+    /**
+     * Switch to the layers in the manifest if it has changed since we last read or wrote it
+     *
+     * @return true if the layers were switched
+     */
+    private boolean readManifest()
+    {
+        JsonObject manifest = clusterCoordinator.readManifest( MANIFEST );
+        if( manifest == null ) {
+            return false;
         }
+
+        schedule.setHistory( manifest.getJsonObject( "schedule" ) );
+
+        // The leader may have retrieved more frames since we loaded an index, so load them again when next used
+        Map<String, Layer> manifestLayers = parseLayers( manifest );
+        manifestLayers.values().forEach( l -> frameIndex.invalidate( l.getLayerName(), l.getDefaultTime() ) );
+
+        switchTo( manifest.getString( "baseUrl" ), manifestLayers, Collections.emptySet() );
+        return true;
+    }
+
+    /**
+     * Has any layer changed from those we currently have
+     *
+     * @param newLayers layers from the capabilities
+     *
+     * @return true if a layer has been added, removed or has a different defaultTime
+     */
+    private boolean isChanged( Map<String, Layer> newLayers )
+    {
+        Map<String, Layer> current = getLayers();
+        return current == null
+               || current.size() != newLayers.size()
+               || newLayers.values()
+                .stream()
+                .anyMatch( l -> isChanged( current, l ) );
+    }
+
+    private static String getKey( Layer layer )
+    {
+        return layer.getLayerName() + "/" + layer.getDefaultTime();
     }
 
-    private synchronized void reloadLayers( JsonObject cap )
+    private static boolean isChanged( Map<String, Layer> current, Layer l )
     {
-        JsonObject obj = cap.getJsonObject( "Layers" );
+        Layer c = current == null ? null : current.get( l.getLayerName() );
+        return c == null || !c.getDefaultTime().equals( l.getDefaultTime() );
+    }
+
+    /**
+     * Remove images from the blob store that are no longer referenced by any issue in the cache
+     */
+    @Cron("0 45 * * * ? *")
+    public void sweep()
+    {
+        if( !clusterCoordinator.isLeader() ) {
+            return;
+        }
+
+        try {
+            blobStore.sweep( frameIndex.getLiveDigests(), Duration.ofHours( 1 ) );
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.SEVERE, "Failed to sweep blobs", ex );
+        }
+    }
 
-        baseUrl = obj.getJsonObject( "BaseUrl" ).getString( "$" );
+    public void status( @Observes Status status )
+    {
+        JsonObjectBuilder b = Json.createObjectBuilder()
+                .add( "reloading", reloading.get() )
+                .add( "reloadsCoalesced", reloadsCoalesced.get() )
+                .add( "blobsStored", blobStore.getStored() )
+                .add( "blobsDeduplicated", blobStore.getDeduplicated() )
+                .add( "blobsSwept", blobStore.getSwept() );
+        JsonUtils.add( b, "lastReload", lastReload );
+        b.add( "schedule", schedule.toJson() );
+        status.add( NAME, b );
+    }
 
-        layers = obj.getJsonArray( "Layer" )
+    private Map<String, Layer> parseLayers( JsonObject obj )
+    {
+        return obj.getJsonArray( "Layer" )
                 .stream()
                 .map( Functions.castTo( JsonObject.class ) )
                 .filter( Objects::nonNull )
@@ -143,11 +502,38 @@ public class ForecastImageLayerService
                 .collect( Collectors.toMap( Layer::getLayerName, Function.identity() ) );
     }
 
+    private synchronized void reloadLayers( String baseUrl, Map<String, Layer> layers )
+    {
+        this.baseUrl = baseUrl;
+        this.layers = layers;
+    }
+
     public LocalDateTime getLastReload()
     {
         return lastReload;
     }
 
+    /**
+     * The name of an image for the layer's current issue, relative to the cache.
+     * <p>
+     * This is the logical name, e.g. layer/wxfcs/{layerName}/{defaultTime}/{timestep}.{format} and is what clients use. The image itself is
+     * resolved with {@link #getPath(onl.area51.metoffice.metoffice.forecast.layer.Layer, java.lang.String, java.lang.String)}.
+     *
+     * @param layer Layer
+     * @param img   image name within the issue
+     *
+     * @return name
+     */
+    public String getName( Layer layer, String img )
+    {
+        return String.join( "/", PREFIX, layer.getLayerName(), layer.getDefaultTime(), img );
+    }
+
+    public String getName( Layer layer, int timestep )
+    {
+        return getName( layer, timestep + "." + layer.getFormat() );
+    }
+
     public Path getPath( Layer layer, int timestep )
     {
         return getPath( layer, layer.getDefaultTime(), timestep + "." + layer.getFormat() );
@@ -158,49 +544,107 @@ public class ForecastImageLayerService
         return getPath( getLayer( layerName ), time, img );
     }
 
+    /**
+     * Resolve an image in the cache.
+     * <p>
+     * Images are stored once in the blob store by their content so an image is resolved through the issue's {@link FrameIndex}. Anything not
+     * in the index, e.g. the sprite or images retrieved before the blob store existed, is in the issue's directory.
+     *
+     * @param layer Layer
+     * @param time  issue time
+     * @param img   image name
+     *
+     * @return Path or null if layer is null
+     */
     public Path getPath( Layer layer, String time, String img )
     {
         if( layer == null ) {
             return null;
         }
+
+        String digest = frameIndex.get( layer.getLayerName(), time, img );
+        if( digest != null ) {
+            return blobStore.getPath( digest, layer.getFormat() );
+        }
+
+        return getIssuePath( layer, time, img );
+    }
+
+    private Path getIssuePath( Layer layer, String time, String img )
+    {
         return dataPoint.getPath( PREFIX, layer.getLayerName(), time, img );
     }
 
-    private void retrieveLayer( Layer layer )
+    /**
+     * Retrieve the images of a layer that are not already in the cache
+     *
+     * @param baseUrl base url of the layer
+     * @param layer   Layer
+     *
+     * @return number of images that failed to be retrieved
+     */
+    private int retrieveLayer( String baseUrl, Layer layer )
     {
-        layer.timesteps()
-                .forEach( timestep -> {
+        String time = layer.getDefaultTime();
+        boolean updated[] = new boolean[1];
+
+        int failures = layer.timesteps()
+                .map( timestep -> {
 
                     String url = layer.getUrl( baseUrl, timestep );
+                    String img = timestep + "." + layer.getFormat();
 
-                    Path path = getPath( layer, timestep );
-                    if( path != null ) {
-                        try {
-                            dataPoint.rawCall( url,
-                                               r -> {
-                                                   try {
-                                                       Files.copy( r.getEntity().getContent(), path, StandardCopyOption.REPLACE_EXISTING );
-                                                   }
-                                                   catch( IOException ex ) {
-                                                       LOG.log( Level.SEVERE, ex, () -> "Failed to persist " + path );
-                                                   }
-
-                                                   pathEvent.fire( path );
-                                               },
-                                               r -> LOG.log( Level.SEVERE,
-                                                             () -> r.getStatusLine().getStatusCode() + ":" + r.getStatusLine().getReasonPhrase()
-                                                                   + " " + url )
-                            );
-                        }
-                        catch( IOException |
-                               UncheckedIOException |
-                               URISyntaxException ex ) {
-                            LOG.log( Level.SEVERE, ex, () -> "Failed to retrieve " + url );
+                    Path path = getPath( layer, time, img );
+                    if( path == null || CacheFiles.isValid( path ) ) {
+                        return 0;
+                    }
+
+                    // Stop calling DataPoint if we have lost the lease
+                    if( !clusterCoordinator.isLeader() ) {
+                        return 1;
+                    }
+
+                    try {
+                        // Download into the issue then move into the blob store
+                        DownloadResult result = dataPoint.download( url, getIssuePath( layer, time, img ) );
+                        LOG.log( Level.FINE, result::toString );
+
+                        // Only notify when content was written. The blob is internal so notify the image's name which is what clients use,
+                        // but not until the issue is published
+                        if( result.getDigest() != null ) {
+                            blobStore.store( result.getPath(), result.getDigest(), layer.getFormat() );
+                            frameIndex.put( layer.getLayerName(), time, img, result.getDigest() );
+                            updated[0] = true;
+                            unpublished.computeIfAbsent( getKey( layer ), k -> new ArrayList<>() ).add( Paths.get( getName( layer, img ) ) );
                         }
+
+                        return 0;
+                    }
+                    catch( CircuitOpenException ex ) {
+                        LOG.log( Level.WARNING, () -> "Not retrieving " + layer.getLayerName() + " " + timestep + ": " + ex.getMessage() );
+                    }
+                    catch( DataPointException ex ) {
+                        LOG.log( Level.SEVERE, () -> "Failed to retrieve " + layer.getLayerName() + " " + timestep + ": " + ex.getMessage() );
+                    }
+                    catch( IOException |
+                           UncheckedIOException |
+                           URISyntaxException ex ) {
+                        LOG.log( Level.SEVERE, ex, () -> "Failed to retrieve " + layer.getLayerName() + " " + timestep );
                     }
-                } );
+                    return 1;
+                } )
+                .sum();
+
+        if( updated[0] ) {
+            try {
+                frameIndex.save( layer.getLayerName(), time );
+            }
+            catch( IOException ex ) {
+                LOG.log( Level.SEVERE, ex, () -> "Failed to save index for " + layer.getLayerName() + " " + time );
+            }
+        }
 
-        layerEvent.fire( layer );
+        return failures;
     }
 
 }
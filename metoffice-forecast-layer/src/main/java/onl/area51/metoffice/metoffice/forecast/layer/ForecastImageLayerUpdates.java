@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import onl.area51.metoffice.UpdateFeed;
+
+/**
+ * Relays layer and image updates to the {@link UpdateFeed} so they are visible to clients via /api/modp/updates
+ * <p>
+ * If the {@link LayerEventDispatcher} had to drop paths a "rescan" update is published for the layer, its value being the number dropped, so
+ * clients know to fetch the layer again.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class ForecastImageLayerUpdates
+{
+
+    @Inject
+    private UpdateFeed updateFeed;
+
+    public void layerUpdated( @Observes LayerUpdate update )
+    {
+        update.getPaths().forEach( path -> updateFeed.publish( "path", path.toString(), null ) );
+        if( update.getDropped() > 0 ) {
+            // Some paths were not delivered so tell clients to fetch the layer again rather than wait for them
+            updateFeed.publish( "rescan", update.getLayerName(), String.valueOf( update.getDropped() ) );
+        }
+        if( update.getLayer() != null ) {
+            updateFeed.publish( "layer", update.getLayerName(), update.getLayer().getDefaultTime() );
+        }
+    }
+}
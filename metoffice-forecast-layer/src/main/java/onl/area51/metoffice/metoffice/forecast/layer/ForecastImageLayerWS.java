@@ -16,9 +16,10 @@
 package onl.area51.metoffice.metoffice.forecast.layer;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.util.function.Supplier;
-import java.util.stream.IntStream;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Observes;
 import javax.inject.Inject;
@@ -41,6 +42,11 @@ import uk.trainwatch.util.JsonUtils;
  * /api/modp/layer/wxfcs/{LayerName}.json will return the current details about a specific layer and the URL's of the available images.
  * <p>
  * /api/modp/layer/wxfcs/{LayerName}/{DateTime}/{timeStep}.{format} will return the appropriate image.
+ * <p>
+ * /api/modp/layer/wxfcs/{LayerName}/{DateTime}/sprite.png will return all of the images for that issue as a single sprite sheet, one frame per
+ * timestep in timestep order.
+ * <p>
+ * Each step of handling a request is recorded as a {@link LayerRequestEvent} so a JFR recording shows where the time goes.
  *
  * @author peter
  */
@@ -53,6 +59,9 @@ public class ForecastImageLayerWS
     @Inject
     private ForecastImageLayerService forecastImageLayerService;
 
+    @Inject
+    private LayerDocuments layerDocuments;
+
     public void deploy( @Observes ActionRegistry registry )
     {
         registry.registerHandler( PREFIX + "/layer/wxfcs.json",
@@ -67,7 +76,7 @@ public class ForecastImageLayerWS
                                   .unscoped()
                                   .method( "GET" )
                                   .add( this::extractPath )
-                                  .ifAttributePresentSendOk( "path", PathEntity::create )
+                                  .ifAttributePresentSendOk( "path", this::sendPath )
                                   .ifAttributePresentSendOk( "layer", this::sendLayer )
                                   .end()
                                   .build() );
@@ -77,26 +86,73 @@ public class ForecastImageLayerWS
     protected void extractPath( Request r )
             throws IOException
     {
-        switch( r.getPathLength() ) {
-            // ../layer.json
-            case 6: {
-                String layer = r.getPath( 5 );
-                if( layer.endsWith( ".json" ) ) {
-                    r.setAttribute( "layer", layer.replace( ".json", "" ) );
+        LayerRequestEvent event = LayerRequestEvent.start( "extractPath", null, null );
+        try {
+            switch( r.getPathLength() ) {
+                // ../layer.json
+                case 6: {
+                    String layer = r.getPath( 5 );
+                    if( layer.endsWith( ".json" ) ) {
+                        event.layer = layer.replace( ".json", "" );
+                        r.setAttribute( "layer", event.layer );
+                    }
                 }
+                break;
+
+                // ../layer/time/timestep.fmt
+                case 8:
+                    event.layer = r.getPath( 5 );
+                    event.timestep = r.getPath( 7 );
+                    r.setAttribute( "path", getPath( event.layer, r.getPath( 6 ), event.timestep ) );
+                    break;
+
+                default:
+                    break;
             }
-            break;
+        }
+        finally {
+            event.finish();
+        }
+    }
 
-            // ../layer/time/timestep.fmt
-            case 8:
-                r.setAttribute( "path", forecastImageLayerService.getPath( r.getPath( 5 ), r.getPath( 6 ), r.getPath( 7 ) ) );
-                break;
+    private Path getPath( String layerName, String time, String img )
+    {
+        LayerRequestEvent event = LayerRequestEvent.start( "getLayer", layerName, img );
+        Layer layer;
+        try {
+            layer = forecastImageLayerService.getLayer( layerName );
+        }
+        finally {
+            event.finish();
+        }
 
-            default:
-                break;
+        event = LayerRequestEvent.start( "getPath", layerName, img );
+        try {
+            Path path = forecastImageLayerService.getPath( layer, time, img );
+            if( event.isRecording() ) {
+                event.cacheHit = path != null && Files.exists( path, LinkOption.NOFOLLOW_LINKS );
+            }
+            return path;
+        }
+        finally {
+            event.finish();
         }
     }
 
+    protected HttpEntity sendPath( String attr, Request request )
+    {
+        String layerName = request.getPath( 5 );
+        String img = request.getPath( 7 );
+
+        HttpEntity entity = PathEntity.create( attr, request );
+        if( entity == null ) {
+            // Not in the cache so record the miss now as there's nothing to stream
+            LayerRequestEvent.start( "stream", layerName, img ).finish();
+            return null;
+        }
+        return new TracedEntity( entity, layerName, img );
+    }
+
     protected HttpEntity sendLayerNames()
     {
         JsonObjectBuilder b = Json.createObjectBuilder()
@@ -112,36 +168,14 @@ public class ForecastImageLayerWS
 
     protected HttpEntity sendLayer( String layerName, Request request )
     {
-        Layer layer = forecastImageLayerService.getLayer( request.getAttribute( layerName ) );
-        if( layer != null ) {
-            return new JsonEntity( Json.createObjectBuilder()
-                    .add( "name", layer.getName() )
-                    .add( "layerName", layer.getLayerName() )
-                    .add( "displayName", layer.getDisplayName() )
-                    .add( "defaultTime", layer.getDefaultTime() )
-                    .add( "format", layer.getFormat() )
-                    // Array of timesteps
-                    .add( "timestep", IntStream.of( layer.getTimestep() )
-                          .mapToObj( Integer::valueOf )
-                          .reduce( Json.createArrayBuilder(), ( a, i ) -> a.add( i ), Functions.writeOnceBinaryOperator() ) )
-                    // Map of timestep to actual image url
-                    .add( "images", IntStream.of( layer.getTimestep() )
-                          .mapToObj( Integer::valueOf )
-                          .reduce( Json.createObjectBuilder(),
-                                   ( a, ts ) -> {
-                                       Path p = forecastImageLayerService.getPath( layer, ts );
-                                       if( p != null ) {
-                                           String ps = p.toString();
-                                           if( !ps.startsWith( "/" ) ) {
-                                               ps = "/" + ps;
-                                           }
-                                           a.add( String.valueOf( ts ), PREFIX + ps );
-                                       }
-                                       return a;
-                                   },
-                                   Functions.writeOnceBinaryOperator() ) )
-            );
+        String name = request.getAttribute( layerName );
+        LayerRequestEvent event = LayerRequestEvent.start( "sendLayer", name, null );
+        try {
+            Layer layer = forecastImageLayerService.getLayer( name );
+            return layer == null ? null : new JsonEntity( layerDocuments.getJson( layer ) );
+        }
+        finally {
+            event.finish();
         }
-        return null;
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.JsonObject;
+import onl.area51.metoffice.BatchContributor;
+
+/**
+ * Provides layers to the batch endpoint, e.g. /api/modp/batch.json?layer=Precipitation_Rate
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class ForecastLayerBatch
+        implements BatchContributor
+{
+
+    @Inject
+    private ForecastImageLayerService forecastImageLayerService;
+
+    @Inject
+    private LayerDocuments layerDocuments;
+
+    @Override
+    public String getParameter()
+    {
+        return "layer";
+    }
+
+    @Override
+    public String getSection()
+    {
+        return "layers";
+    }
+
+    @Override
+    public String getVersion( String id )
+    {
+        Layer layer = forecastImageLayerService.getLayer( id );
+        return layer == null ? null : layerDocuments.getVersion( layer );
+    }
+
+    @Override
+    public JsonObject getItem( String id )
+    {
+        Layer layer = forecastImageLayerService.getLayer( id );
+        return layer == null ? null : layerDocuments.getJson( layer );
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+import onl.area51.metoffice.CacheFiles;
+
+/**
+ * Builds a single sprite sheet for each layer issue so clients can animate a layer with one request rather than one per timestep.
+ * <p>
+ * The sprite is a single png with each timestep's image placed left to right in the same order as the layer's timestep array. It is built once
+ * per layer and defaultTime when the layer has been retrieved and is stored alongside the individual frames in the cache, so it is served by the
+ * existing /api/modp/layer/wxfcs/{LayerName}/{DateTime}/sprite.png endpoint.
+ * <p>
+ * Decoding the frames and encoding the sprite is slow so it runs on a thread of its own rather than on the thread delivering the event, which is
+ * one of the {@link onl.area51.metoffice.BackgroundExecutor} threads also needed for the reloads at startup. Updates for a layer that arrive
+ * whilst it is waiting to be built replace the earlier one so each layer is built once for its latest issue.
+ * <p>
+ * Once a sprite is available a {@link SpriteUpdate} is fired and it is remembered so {@link #isPresent(Layer)} never touches the cache.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class ForecastSpriteService
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    /**
+     * The image name of the sprite within a layer's issue directory
+     */
+    public static final String SPRITE = "sprite.png";
+
+    @Inject
+    private ForecastImageLayerService forecastImageLayerService;
+
+    @Inject
+    private Event<SpriteUpdate> spriteEvent;
+
+    /**
+     * The defaultTime of the latest issue of each layer whose sprite is available
+     */
+    private final Map<String, String> available = new ConcurrentHashMap<>();
+
+    /**
+     * The latest update of each layer waiting to be built
+     */
+    private final Map<String, Layer> pending = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    void start()
+    {
+        executor = Executors.newSingleThreadExecutor( r -> {
+            Thread t = new Thread( r, "metoffice-sprite" );
+            t.setDaemon( true );
+            return t;
+        } );
+    }
+
+    @PreDestroy
+    void stop()
+    {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination( 5, TimeUnit.SECONDS );
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue the sprite to be built when a layer has been updated
+     *
+     * @param layer updated layer
+     */
+    public void layerUpdated( @Observes Layer layer )
+    {
+        String layerName = layer.getLayerName();
+        if( pending.put( layerName, layer ) == null ) {
+            try {
+                executor.execute( () -> build( layerName ) );
+            }
+            catch( RejectedExecutionException ex ) {
+                // Shutting down
+                pending.remove( layerName );
+            }
+        }
+    }
+
+    private void build( String layerName )
+    {
+        Layer layer = pending.remove( layerName );
+        if( layer != null ) {
+            try {
+                build( layer );
+            }
+            catch( IOException |
+                   RuntimeException ex ) {
+                LOG.log( Level.SEVERE, ex, () -> "Failed to build sprite for " + layerName + " " + layer.getDefaultTime() );
+            }
+        }
+    }
+
+    /**
+     * The path of the sprite for a layer's current issue
+     *
+     * @param layer Layer
+     *
+     * @return Path or null if layer is null
+     */
+    public Path getPath( Layer layer )
+    {
+        return forecastImageLayerService.getPath( layer, layer.getDefaultTime(), SPRITE );
+    }
+
+    /**
+     * Is the sprite present for the layer's current issue. This is answered from memory so is cheap enough for every request.
+     *
+     * @param layer Layer
+     *
+     * @return true if the sprite has been built
+     */
+    public boolean isPresent( Layer layer )
+    {
+        return layer.getDefaultTime().equals( available.get( layer.getLayerName() ) );
+    }
+
+    private void available( Layer layer, Path spritePath )
+    {
+        if( !layer.getDefaultTime().equals( available.put( layer.getLayerName(), layer.getDefaultTime() ) ) ) {
+            spriteEvent.fire( new SpriteUpdate( layer, spritePath ) );
+        }
+    }
+
+    /**
+     * Build the sprite for a layer's current issue.
+     * <p>
+     * This does nothing if the sprite already exists or if any of the frames are not yet in the cache.
+     *
+     * @param layer Layer
+     *
+     * @throws IOException on failure
+     */
+    public synchronized void build( Layer layer )
+            throws IOException
+    {
+        Path spritePath = getPath( layer );
+        if( spritePath == null ) {
+            return;
+        }
+        if( CacheFiles.isValid( spritePath ) ) {
+            // Built by another node or before a restart
+            available( layer, spritePath );
+            return;
+        }
+
+        int timestep[] = layer.getTimestep();
+        if( timestep.length == 0 ) {
+            return;
+        }
+
+        BufferedImage frames[] = new BufferedImage[timestep.length];
+        for( int i = 0; i < timestep.length; i++ ) {
+            Path path = forecastImageLayerService.getPath( layer, timestep[i] );
+            if( !CacheFiles.isValid( path ) ) {
+                LOG.log( Level.FINE, () -> "Sprite for " + layer.getLayerName() + " incomplete, missing " + path );
+                return;
+            }
+
+            try( InputStream is = Files.newInputStream( path ) ) {
+                frames[i] = ImageIO.read( is );
+            }
+            if( frames[i] == null ) {
+                throw new IOException( "Unable to decode " + path );
+            }
+        }
+
+        // All frames for an issue share the same size so place them in a single row
+        int width = frames[0].getWidth();
+        int height = frames[0].getHeight();
+        BufferedImage sprite = new BufferedImage( width * frames.length, height, BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = sprite.createGraphics();
+        try {
+            for( int i = 0; i < frames.length; i++ ) {
+                g.drawImage( frames[i], i * width, 0, width, height, null );
+            }
+        }
+        finally {
+            g.dispose();
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write( sprite, "png", baos );
+        CacheFiles.write( spritePath, baos.toByteArray() );
+        available( layer, spritePath );
+
+        LOG.log( Level.INFO, () -> "Built sprite " + spritePath + " with " + frames.length + " frames" );
+    }
+}
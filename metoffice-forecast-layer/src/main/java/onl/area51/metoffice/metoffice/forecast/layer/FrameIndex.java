@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonWriter;
+import onl.area51.metoffice.CacheFiles;
+import onl.area51.metoffice.DataPoint;
+
+/**
+ * Maps the images of a layer issue to the digest of their content in the {@link onl.area51.metoffice.BlobStore}.
+ * <p>
+ * Each issue has an index.json in its directory mapping the image name, e.g. "0.png" to its digest. Indices are loaded on demand and kept in
+ * memory. Issues without an index are not remembered, and indices of issues that are no longer published or staged are dropped from memory
+ * whenever the layers are switched.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class FrameIndex
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final String INDEX = "index.json";
+
+    @Inject
+    private DataPoint dataPoint;
+
+    private final Map<String, Map<String, String>> indices = new ConcurrentHashMap<>();
+
+    private Path getIndexPath( String layerName, String time )
+    {
+        return dataPoint.getPath( ForecastImageLayerService.PREFIX, layerName, time, INDEX );
+    }
+
+    private String getKey( String layerName, String time )
+    {
+        return layerName + "/" + time;
+    }
+
+    /**
+     * Get an index, loading it from the cache if not in memory. Only indices that exist are kept in memory as the time may come from a client.
+     *
+     * @param layerName layer name
+     * @param time      issue time
+     *
+     * @return index or null if there isn't one
+     */
+    private Map<String, String> getIndex( String layerName, String time )
+    {
+        String key = getKey( layerName, time );
+        Map<String, String> index = indices.get( key );
+        if( index == null ) {
+            index = load( getIndexPath( layerName, time ) );
+            if( index != null ) {
+                Map<String, String> existing = indices.putIfAbsent( key, index );
+                if( existing != null ) {
+                    index = existing;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Get an index, creating it if it doesn't exist. This must only be called for issues retrieved from DataPoint.
+     *
+     * @param layerName layer name
+     * @param time      issue time
+     *
+     * @return index
+     */
+    private Map<String, String> getOrCreateIndex( String layerName, String time )
+    {
+        Map<String, String> index = getIndex( layerName, time );
+        return index != null ? index : indices.computeIfAbsent( getKey( layerName, time ), k -> new ConcurrentHashMap<>() );
+    }
+
+    private Map<String, String> load( Path path )
+    {
+        if( !CacheFiles.isValid( path ) ) {
+            return null;
+        }
+
+        try( JsonReader r = Json.createReader( Files.newBufferedReader( path ) ) ) {
+            Map<String, String> index = new ConcurrentHashMap<>();
+            JsonObject o = r.readObject();
+            o.forEach( ( k, v ) -> {
+                if( v instanceof JsonString ) {
+                    index.put( k, ((JsonString) v).getString() );
+                }
+            } );
+            return index;
+        }
+        catch( IOException |
+               JsonException ex ) {
+            LOG.log( Level.WARNING, ex, () -> "Failed to read " + path );
+            return null;
+        }
+    }
+
+    /**
+     * Get the digest of an image
+     *
+     * @param layerName layer name
+     * @param time      issue time
+     * @param img       image name
+     *
+     * @return digest or null if not in the index
+     */
+    public String get( String layerName, String time, String img )
+    {
+        Map<String, String> index = getIndex( layerName, time );
+        return index == null ? null : index.get( img );
+    }
+
+    /**
+     * Add an image to an index. The index is not persisted until {@link #save(java.lang.String, java.lang.String)} is called.
+     *
+     * @param layerName layer name
+     * @param time      issue time
+     * @param img       image name
+     * @param digest    digest of the image
+     */
+    public void put( String layerName, String time, String img, String digest )
+    {
+        getOrCreateIndex( layerName, time ).put( img, digest );
+    }
+
+    /**
+     * Drop an index from memory so it is loaded from the cache when next used, e.g. when another node has updated it
+     *
+     * @param layerName layer name
+     * @param time      issue time
+     */
+    public void invalidate( String layerName, String time )
+    {
+        indices.remove( getKey( layerName, time ) );
+    }
+
+    /**
+     * Drop every index from memory except those of the given layer issues
+     *
+     * @param layers layers whose current issue should be kept
+     */
+    public void retain( Collection<Layer> layers )
+    {
+        Set<String> keys = new HashSet<>();
+        layers.forEach( l -> keys.add( getKey( l.getLayerName(), l.getDefaultTime() ) ) );
+        indices.keySet().retainAll( keys );
+    }
+
+    /**
+     * Persist an index
+     *
+     * @param layerName layer name
+     * @param time      issue time
+     *
+     * @throws IOException on failure
+     */
+    public void save( String layerName, String time )
+            throws IOException
+    {
+        JsonObjectBuilder b = Json.createObjectBuilder();
+        getOrCreateIndex( layerName, time ).forEach( b::add );
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try( JsonWriter w = Json.createWriter( os ) ) {
+            w.writeObject( b.build() );
+        }
+        CacheFiles.write( getIndexPath( layerName, time ), os.toByteArray() );
+    }
+
+    /**
+     * Scan every index in the cache returning the digests they reference. Indices of issues no longer in the cache are dropped from memory.
+     *
+     * @return digests referenced by any index
+     *
+     * @throws IOException on failure
+     */
+    public Set<String> getLiveDigests()
+            throws IOException
+    {
+        Path root = dataPoint.getPath( ForecastImageLayerService.PREFIX );
+        if( !Files.isDirectory( root, LinkOption.NOFOLLOW_LINKS ) ) {
+            return Collections.emptySet();
+        }
+
+        Set<String> keys = new HashSet<>();
+        Set<String> digests = new HashSet<>();
+        try( DirectoryStream<Path> layers = Files.newDirectoryStream( root, p -> Files.isDirectory( p, LinkOption.NOFOLLOW_LINKS ) ) ) {
+            for( Path layer: layers ) {
+                try( DirectoryStream<Path> issues = Files.newDirectoryStream( layer, p -> Files.isDirectory( p, LinkOption.NOFOLLOW_LINKS ) ) ) {
+                    for( Path issue: issues ) {
+                        String layerName = layer.getFileName().toString();
+                        String time = issue.getFileName().toString();
+                        keys.add( getKey( layerName, time ) );
+                        Map<String, String> index = getIndex( layerName, time );
+                        if( index != null ) {
+                            digests.addAll( index.values() );
+                        }
+                    }
+                }
+            }
+        }
+
+        indices.keySet().retainAll( keys );
+
+        return digests;
+    }
+}
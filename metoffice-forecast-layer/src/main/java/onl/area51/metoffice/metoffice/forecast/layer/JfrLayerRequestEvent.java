@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event behind {@link LayerRequestEvent}. Only referenced when {@link onl.area51.metoffice.Tracing#isEnabled()}.
+ *
+ * @author peter
+ */
+@Name("onl.area51.metoffice.LayerRequest")
+@Label("Layer Request")
+@Category({"MetOffice", "Layer"})
+@Description("A step in handling a request for a forecast layer")
+final class JfrLayerRequestEvent
+        extends Event
+{
+
+    @Label("Step")
+    String step;
+
+    @Label("Layer")
+    String layer;
+
+    @Label("Timestep")
+    @Description("The image requested, e.g. 3.png")
+    String timestep;
+
+    @Label("Cache Hit")
+    boolean cacheHit;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    static JfrLayerRequestEvent start()
+    {
+        JfrLayerRequestEvent event = new JfrLayerRequestEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish( LayerRequestEvent e )
+    {
+        end();
+        if( shouldCommit() ) {
+            step = e.step;
+            layer = e.layer;
+            timestep = e.timestep;
+            cacheHit = e.cacheHit;
+            bytes = e.bytes;
+            commit();
+        }
+    }
+}
@@ -33,6 +33,7 @@ import uk.trainwatch.util.JsonUtils;
 public class Layer
 {
 
+    private final JsonObject json;
     private final String displayName;
     private final String name;
     private final String layerName;
@@ -44,6 +45,7 @@ public class Layer
 
     public Layer( JsonObject o )
     {
+        json = o;
         displayName = o.getString( "@displayName" );
 
         JsonObject service = o.getJsonObject( "Service" );
@@ -120,6 +122,16 @@ public class Layer
         return true;
     }
 
+    /**
+     * The capabilities this layer was created from
+     *
+     * @return JsonObject
+     */
+    public JsonObject getJson()
+    {
+        return json;
+    }
+
     public String getDisplayName()
     {
         return displayName;
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import onl.area51.metoffice.CacheFiles;
+import uk.trainwatch.util.Functions;
+
+/**
+ * The json describing each layer, as returned by /api/modp/layer/wxfcs/{LayerName}.json and the batch endpoint.
+ * <p>
+ * The json is built once per layer issue and only rebuilt when the layer changes or {@link ForecastSpriteService} reports its sprite sheet is
+ * available, so serving it never touches the cache.
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class LayerDocuments
+{
+
+    private static final String PREFIX = "/api/modp";
+
+    @Inject
+    private ForecastImageLayerService forecastImageLayerService;
+
+    @Inject
+    private ForecastSpriteService forecastSpriteService;
+
+    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+
+    private static class Document
+    {
+
+        private final Layer layer;
+        private final boolean sprite;
+        private final JsonObject json;
+        private final String version;
+
+        private Document( Layer layer, boolean sprite, JsonObject json )
+        {
+            this.layer = layer;
+            this.sprite = sprite;
+            this.json = json;
+            this.version = getVersion( json );
+        }
+    }
+
+    /**
+     * The json of a layer
+     *
+     * @param layer Layer
+     *
+     * @return JsonObject
+     */
+    public JsonObject getJson( Layer layer )
+    {
+        return getDocument( layer ).json;
+    }
+
+    /**
+     * The version of a layer's json. This is derived from the content so changes whenever the json does.
+     *
+     * @param layer Layer
+     *
+     * @return version
+     */
+    public String getVersion( Layer layer )
+    {
+        return getDocument( layer ).version;
+    }
+
+    private static String getVersion( JsonObject json )
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+            return CacheFiles.toHex( md.digest( json.toString().getBytes( StandardCharsets.UTF_8 ) ) ).substring( 0, 16 );
+        }
+        catch( NoSuchAlgorithmException ex ) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException( ex );
+        }
+    }
+
+    /**
+     * Rebuild a layer's json once its sprite is available
+     *
+     * @param update sprite update
+     */
+    public void spriteUpdated( @Observes SpriteUpdate update )
+    {
+        Layer layer = update.getLayer();
+        documents.computeIfPresent( layer.getLayerName(),
+                                    ( k, d ) -> !d.sprite && d.layer.getDefaultTime().equals( layer.getDefaultTime() )
+                                                ? new Document( d.layer, true, build( d.layer, true ) )
+                                                : d );
+    }
+
+    private Document getDocument( Layer layer )
+    {
+        Document d = documents.get( layer.getLayerName() );
+        // Layers are replaced, not modified, when reloaded
+        if( d != null && d.layer == layer ) {
+            return d;
+        }
+
+        return documents.compute( layer.getLayerName(), ( k, c ) -> {
+                              if( c == null || c.layer != layer ) {
+                                  boolean sprite = forecastSpriteService.isPresent( layer );
+                                  return new Document( layer, sprite, build( layer, sprite ) );
+                              }
+                              return c;
+                          } );
+    }
+
+    private JsonObject build( Layer layer, boolean sprite )
+    {
+        JsonObjectBuilder b = Json.createObjectBuilder()
+                .add( "name", layer.getName() )
+                .add( "layerName", layer.getLayerName() )
+                .add( "displayName", layer.getDisplayName() )
+                .add( "defaultTime", layer.getDefaultTime() )
+                .add( "format", layer.getFormat() )
+                // Array of timesteps
+                .add( "timestep", IntStream.of( layer.getTimestep() )
+                      .mapToObj( Integer::valueOf )
+                      .reduce( Json.createArrayBuilder(), ( a, i ) -> a.add( i ), Functions.writeOnceBinaryOperator() ) )
+                // Map of timestep to actual image url
+                .add( "images", IntStream.of( layer.getTimestep() )
+                      .mapToObj( Integer::valueOf )
+                      .reduce( Json.createObjectBuilder(),
+                               ( a, ts ) -> {
+                                   a.add( String.valueOf( ts ), getUrl( forecastImageLayerService.getName( layer, ts ) ) );
+                                   return a;
+                               },
+                               Functions.writeOnceBinaryOperator() ) );
+
+        // The sprite sheet of all images, only present once every image has been retrieved
+        if( sprite ) {
+            b.add( "sprite", getUrl( forecastImageLayerService.getName( layer, ForecastSpriteService.SPRITE ) ) );
+        }
+
+        return b.build();
+    }
+
+    private String getUrl( String ps )
+    {
+        if( !ps.startsWith( "/" ) ) {
+            ps = "/" + ps;
+        }
+        return PREFIX + ps;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.Json;
+import onl.area51.metoffice.Status;
+import uk.trainwatch.util.config.Configuration;
+import uk.trainwatch.util.config.ConfigurationService;
+
+/**
+ * Delivers layer and path updates to observers in the background so a slow observer, e.g. building a sprite, doesn't hold up retrieving the
+ * remaining images. Delivery has a thread of its own so it is not held up by long reloads on the
+ * {@link onl.area51.metoffice.BackgroundExecutor}.
+ * <p>
+ * Updates are queued per layer and delivered in batches after a short delay so an observer sees one {@link LayerUpdate} per layer rather than
+ * one event per image. The queue is bounded: once it holds capacity paths any further paths are dropped, and counted in the next
+ * {@link LayerUpdate}, until observers catch up. Layers are never dropped as there is at most one pending per layer.
+ * <p>
+ * Only one batch is delivered at a time, in the order layers were first queued. For existing observers each batch is followed by the
+ * individual Path events then the Layer event. Path observers do not see dropped paths so anything that needs to know should observe
+ * {@link LayerUpdate} instead.
+ * <p>
+ * Configuration: An optional JsonObject called "events" within the "metoffice" configuration with the following parameters:
+ * <table>
+ * <tr><th>Parameter</th><th>Type</th><th>Required</th><th>Purpose</th></tr>
+ * <tr><td>capacity</td><td>Long</td><td>No (1000)</td><td>Maximum number of paths queued</td></tr>
+ * <tr><td>delay</td><td>Long</td><td>No (500)</td><td>Milliseconds to collect updates before delivering them</td></tr>
+ * </table>
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class LayerEventDispatcher
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final long DEFAULT_CAPACITY = 1000;
+    private static final long DEFAULT_DELAY = 500;
+
+    private static class Pending
+    {
+
+        private Layer layer;
+        private final Set<Path> paths = new LinkedHashSet<>();
+        private int dropped;
+    }
+
+    @Inject
+    private ConfigurationService configurationService;
+
+    @Inject
+    private Event<LayerUpdate> updateEvent;
+
+    /**
+     * Event used to notify that a layer has been updated
+     */
+    @Inject
+    private Event<Layer> layerEvent;
+
+    /**
+     * Event used to notify that a path has been updated
+     */
+    @Inject
+    private Event<Path> pathEvent;
+
+    private int capacity;
+    private long delay;
+    private ScheduledExecutorService executor;
+
+    // Guarded by this
+    private Map<String, Pending> pending = new LinkedHashMap<>();
+    private int queued;
+    private int maxQueued;
+    private boolean scheduled;
+
+    private final AtomicLong paths = new AtomicLong();
+    private final AtomicLong layers = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastDelivery;
+
+    @PostConstruct
+    void start()
+    {
+        Configuration config = configurationService.getConfiguration( "metoffice" ).getConfiguration( "events" );
+        capacity = (int) config.getLong( "capacity", DEFAULT_CAPACITY );
+        delay = config.getLong( "delay", DEFAULT_DELAY );
+        executor = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread t = new Thread( r, "metoffice-layer-events" );
+            t.setDaemon( true );
+            return t;
+        } );
+    }
+
+    @PreDestroy
+    void stop()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queue a path that has been updated
+     *
+     * @param layer layer the path belongs to
+     * @param path  name of the image relative to the cache, see {@link LayerUpdate#getPaths()}
+     */
+    public synchronized void path( Layer layer, Path path )
+    {
+        Pending p = getPending( layer );
+        if( queued >= capacity ) {
+            p.dropped++;
+            dropped.incrementAndGet();
+        }
+        else if( p.paths.add( path ) ) {
+            queued++;
+            maxQueued = Math.max( maxQueued, queued );
+            paths.incrementAndGet();
+        }
+        schedule();
+    }
+
+    /**
+     * Queue a layer that has been published, replacing any earlier instance of the same layer not yet delivered
+     *
+     * @param layer layer
+     */
+    public synchronized void layer( Layer layer )
+    {
+        getPending( layer ).layer = layer;
+        layers.incrementAndGet();
+        schedule();
+    }
+
+    public void status( @Observes Status status )
+    {
+        int depth, max;
+        synchronized( this ) {
+            depth = queued;
+            max = maxQueued;
+        }
+        status.add( "layerEvents", Json.createObjectBuilder()
+                    .add( "capacity", capacity )
+                    .add( "queued", depth )
+                    .add( "maxQueued", max )
+                    .add( "paths", paths.get() )
+                    .add( "layers", layers.get() )
+                    .add( "dropped", dropped.get() )
+                    .add( "batches", batches.get() )
+                    .add( "failures", failures.get() )
+                    .add( "lastDelivery", lastDelivery ) );
+    }
+
+    private Pending getPending( Layer layer )
+    {
+        return pending.computeIfAbsent( layer.getLayerName(), n -> new Pending() );
+    }
+
+    private void schedule()
+    {
+        if( !scheduled ) {
+            try {
+                executor.schedule( this::deliver, delay, TimeUnit.MILLISECONDS );
+                scheduled = true;
+            }
+            catch( RejectedExecutionException ex ) {
+                // Shutting down
+                LOG.log( Level.FINE, "Not delivering layer events, shutting down" );
+            }
+        }
+    }
+
+    /**
+     * Deliver everything queued so far. Whilst this runs new updates collect in a fresh queue which is delivered once this has finished.
+     */
+    private void deliver()
+    {
+        Map<String, Pending> batch;
+        synchronized( this ) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            queued = 0;
+        }
+
+        try {
+            batch.forEach( ( layerName, p ) -> {
+                try {
+                    LayerUpdate update = new LayerUpdate( layerName,
+                                                          p.layer,
+                                                          Collections.unmodifiableList( new ArrayList<>( p.paths ) ),
+                                                          p.dropped );
+                    LOG.log( Level.FINE, update::toString );
+
+                    updateEvent.fire( update );
+                    update.getPaths().forEach( pathEvent::fire );
+                    if( p.layer != null ) {
+                        layerEvent.fire( p.layer );
+                    }
+                    batches.incrementAndGet();
+                }
+                catch( RuntimeException ex ) {
+                    failures.incrementAndGet();
+                    LOG.log( Level.SEVERE, ex, () -> "Failed to deliver updates for " + layerName );
+                }
+            } );
+            lastDelivery = System.currentTimeMillis();
+        }
+        finally {
+            synchronized( this ) {
+                scheduled = false;
+                if( !pending.isEmpty() ) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
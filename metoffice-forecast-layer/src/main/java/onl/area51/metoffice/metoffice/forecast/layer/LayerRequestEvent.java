@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import onl.area51.metoffice.Tracing;
+
+/**
+ * Records one step of handling a request to {@link ForecastImageLayerWS}.
+ * <p>
+ * The steps are:
+ * <ul>
+ * <li>extractPath - the whole of parsing the request, which includes getLayer and getPath for an image</li>
+ * <li>getLayer - looking up the layer</li>
+ * <li>getPath - resolving the image in the cache through the frame index, cacheHit is true if it resolved to a file in the cache</li>
+ * <li>stream - writing the image to the client, cacheHit is true if it was in the cache</li>
+ * <li>sendLayer - building the json of a layer</li>
+ * </ul>
+ * These are recorded as JFR events when {@link Tracing} is enabled.
+ *
+ * @author peter
+ */
+final class LayerRequestEvent
+{
+
+    private final JfrLayerRequestEvent event;
+
+    String step;
+    String layer;
+    String timestep;
+    boolean cacheHit;
+    long bytes;
+
+    private LayerRequestEvent( JfrLayerRequestEvent event )
+    {
+        this.event = event;
+    }
+
+    static LayerRequestEvent start( String step, String layer, String timestep )
+    {
+        LayerRequestEvent event = new LayerRequestEvent( Tracing.isEnabled() ? JfrLayerRequestEvent.start() : null );
+        event.step = step;
+        event.layer = layer;
+        event.timestep = timestep;
+        return event;
+    }
+
+    /**
+     * Is this event being recorded. Anything costly to record should only be done if it is.
+     *
+     * @return true if recording
+     */
+    boolean isRecording()
+    {
+        return event != null;
+    }
+
+    void finish()
+    {
+        if( event != null ) {
+            event.finish( this );
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Event fired with the updates to a single layer coalesced since the last event.
+ * <p>
+ * Observers receive this from {@link LayerEventDispatcher} on a background thread rather than the thread retrieving the layer.
+ *
+ * @author peter
+ */
+public class LayerUpdate
+{
+
+    private final String layerName;
+    private final Layer layer;
+    private final List<Path> paths;
+    private final int dropped;
+
+    LayerUpdate( String layerName, Layer layer, List<Path> paths, int dropped )
+    {
+        this.layerName = layerName;
+        this.layer = layer;
+        this.paths = paths;
+        this.dropped = dropped;
+    }
+
+    public String getLayerName()
+    {
+        return layerName;
+    }
+
+    /**
+     * The layer if it has been published since the last update
+     *
+     * @return Layer or null if only paths have been updated
+     */
+    public Layer getLayer()
+    {
+        return layer;
+    }
+
+    /**
+     * The paths updated in this layer in the order they were retrieved.
+     * <p>
+     * Each path is relative to the cache and is the image's name, e.g. layer/wxfcs/{layerName}/{defaultTime}/{timestep}.png, so it maps
+     * directly onto the image's url. It is not where the image is stored.
+     *
+     * @return unmodifiable list of paths
+     */
+    public List<Path> getPaths()
+    {
+        return paths;
+    }
+
+    /**
+     * The number of paths that were updated but not included as the queue was full. If this is not 0 an observer that needs every path should
+     * rescan the layer.
+     *
+     * @return number of dropped paths
+     */
+    public int getDropped()
+    {
+        return dropped;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LayerUpdate[" + layerName + ", layer=" + (layer != null) + ", paths=" + paths.size() + ", dropped=" + dropped + "]";
+    }
+}
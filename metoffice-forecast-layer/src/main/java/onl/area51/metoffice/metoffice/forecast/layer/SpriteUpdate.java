@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import java.nio.file.Path;
+
+/**
+ * Event fired by {@link ForecastSpriteService} once the sprite of a layer issue is available, either built or found in the cache
+ *
+ * @author peter
+ */
+public class SpriteUpdate
+{
+
+    private final Layer layer;
+    private final Path path;
+
+    SpriteUpdate( Layer layer, Path path )
+    {
+        this.layer = layer;
+        this.path = path;
+    }
+
+    public Layer getLayer()
+    {
+        return layer;
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.metoffice.forecast.layer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Wraps an image being sent to a client recording how long it took to stream and how many bytes were written as a
+ * {@link LayerRequestEvent}.
+ *
+ * @author peter
+ */
+class TracedEntity
+        extends HttpEntityWrapper
+{
+
+    private final String layer;
+    private final String timestep;
+
+    TracedEntity( HttpEntity entity, String layer, String timestep )
+    {
+        super( entity );
+        this.layer = layer;
+        this.timestep = timestep;
+    }
+
+    @Override
+    public void writeTo( OutputStream outstream )
+            throws IOException
+    {
+        LayerRequestEvent event = LayerRequestEvent.start( "stream", layer, timestep );
+        event.cacheHit = true;
+        CountingOutputStream os = new CountingOutputStream( outstream );
+        try {
+            super.writeTo( os );
+        }
+        finally {
+            event.bytes = os.count;
+            event.finish();
+        }
+    }
+
+    private static class CountingOutputStream
+            extends FilterOutputStream
+    {
+
+        private long count;
+
+        CountingOutputStream( OutputStream out )
+        {
+            super( out );
+        }
+
+        @Override
+        public void write( int b )
+                throws IOException
+        {
+            out.write( b );
+            count++;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+                throws IOException
+        {
+            out.write( b, off, len );
+            count += len;
+        }
+    }
+}
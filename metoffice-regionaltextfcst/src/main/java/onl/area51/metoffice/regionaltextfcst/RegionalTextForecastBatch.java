@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.regionaltextfcst;
+
+import java.time.LocalDateTime;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.JsonObject;
+import onl.area51.metoffice.BatchContributor;
+
+/**
+ * Provides regional forecasts to the batch endpoint by region id or name, e.g. /api/modp/batch.json?region=514,os
+ *
+ * @author peter
+ */
+@ApplicationScoped
+public class RegionalTextForecastBatch
+        implements BatchContributor
+{
+
+    @Inject
+    private RegionalTextForecastService regionalTextForecastService;
+
+    @Override
+    public String getParameter()
+    {
+        return "region";
+    }
+
+    @Override
+    public String getSection()
+    {
+        return "regions";
+    }
+
+    @Override
+    public String getVersion( String id )
+    {
+        // Every region is replaced together when a new issue is published
+        LocalDateTime issuedAt = regionalTextForecastService.getIssuedAt();
+        return issuedAt == null || getItem( id ) == null ? null : issuedAt.toString();
+    }
+
+    @Override
+    public JsonObject getItem( String id )
+    {
+        try {
+            return regionalTextForecastService.getForecast( Integer.parseInt( id ) );
+        }
+        catch( NumberFormatException ex ) {
+            return regionalTextForecastService.getForecast( id );
+        }
+    }
+}
@@ -5,32 +5,47 @@
  */
 package onl.area51.metoffice.regionaltextfcst;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
 import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 import javax.json.Json;
+import javax.json.JsonException;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
 import javax.json.JsonWriter;
-import onl.area51.httpd.action.ActionRegistry;
+import onl.area51.metoffice.BackgroundExecutor;
+import onl.area51.metoffice.CacheFiles;
+import onl.area51.metoffice.CacheRetention;
+import onl.area51.metoffice.ClusterCoordinator;
 import onl.area51.metoffice.DataPoint;
+import onl.area51.metoffice.IssueSchedule;
+import onl.area51.metoffice.JsonSnapshot;
+import onl.area51.metoffice.ReloadEvent;
+import onl.area51.metoffice.RetentionPolicy;
+import onl.area51.metoffice.Startup;
+import onl.area51.metoffice.StartupComponent;
+import onl.area51.metoffice.Status;
+import onl.area51.metoffice.UpdateFeed;
 import uk.trainwatch.scheduler.Cron;
 import uk.trainwatch.util.Functions;
 import uk.trainwatch.util.JsonUtils;
@@ -41,22 +56,52 @@ import uk.trainwatch.util.JsonUtils;
  */
 @ApplicationScoped
 public class RegionalTextForecastService
+        implements StartupComponent
 {
 
     private static final Logger LOG = Logger.getGlobal();
 
+    private static final String PREFIX = "txt/wxfcs/regionalforecast";
+    private static final String NAME = "regionalTextForecast";
+    private static final String MANIFEST = NAME;
+
     @Inject
     private DataPoint dataPoint;
 
-    private LocalDateTime lastReload;
+    @Inject
+    private CacheRetention cacheRetention;
+
+    @Inject
+    private UpdateFeed updateFeed;
+
+    @Inject
+    private ClusterCoordinator clusterCoordinator;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private Startup startup;
+
+    private volatile LocalDateTime lastReload;
+    private volatile LocalDateTime issuedAt;
+    private volatile LocalDateTime staging;
 
-    private Map<Integer, String> locationsById;
-    private Map<String, Integer> locationsByName;
-    private final Map<Integer, JsonObject> forecasts = new ConcurrentHashMap<>();
+    /**
+     * Forecasts are issued twice a day. Poll every 5 minutes when an issue is due backing off to 30 minutes
+     */
+    private final IssueSchedule schedule = new IssueSchedule( Duration.ofHours( 12 ), Duration.ofMinutes( 5 ), Duration.ofMinutes( 30 ) );
 
-    public void deploy( @Observes ActionRegistry registry )
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private final AtomicLong reloadsCoalesced = new AtomicLong();
+
+    private volatile Map<Integer, String> locationsById;
+    private volatile Map<String, Integer> locationsByName;
+    private volatile Map<Integer, JsonObject> forecasts = Collections.emptyMap();
+
+    public void init( @Observes @Initialized(ApplicationScoped.class) Object init )
     {
-        // Do nothing, just ensure we start when the web server does
+        // Do nothing, just ensure we start with the application
     }
 
     public JsonObject getForecast( int id )
@@ -66,7 +111,8 @@ public class RegionalTextForecastService
 
     public JsonObject getForecast( String name )
     {
-        Integer id = locationsByName.get( name );
+        Map<String, Integer> l = locationsByName;
+        Integer id = l == null ? null : l.get( name );
         return id == null ? null : forecasts.get( id );
     }
 
@@ -80,77 +126,322 @@ public class RegionalTextForecastService
         return locationsByName.values();
     }
 
+    public LocalDateTime getIssuedAt()
+    {
+        return issuedAt;
+    }
+
+    /**
+     * Start by serving whatever was last published from the cache. Checking DataPoint for anything newer is left to the background.
+     */
     @PostConstruct
     void start()
     {
-        new Thread( () -> {
-            try {
-                reload();
-            }
-            catch( IOException |
-                   URISyntaxException ex ) {
-                Logger.getLogger( RegionalTextForecastService.class.getName() ).log( Level.SEVERE, null, ex );
-            }
-        } ).start();
+        startup.register( NAME );
+
+        cacheRetention.register( new RetentionPolicy( NAME, PREFIX, 0, 2, Duration.ofDays( 3 ), this::isInUse ) );
+
+        try {
+            readManifest();
+        }
+        catch( URISyntaxException ex ) {
+            LOG.log( Level.SEVERE, "Failed to restore forecasts", ex );
+        }
+        startup.stage( NAME, "restored" );
+
+        backgroundExecutor.submit( NAME + " reload", this::reload );
+    }
+
+    /**
+     * Is an issue directory in the cache in use
+     *
+     * @param issue directory in the form txt/wxfcs/regionalforecast/{issuedAt}
+     *
+     * @return true if it's the current or staged issue or we have not yet loaded one
+     */
+    private boolean isInUse( Path issue )
+    {
+        LocalDateTime i = issuedAt;
+        LocalDateTime s = staging;
+        String name = issue.getFileName().toString();
+        return i == null || i.toString().equals( name ) || (s != null && s.toString().equals( name ));
     }
 
-    @Cron("0 5/5 4-8,16-20 * * ? *")
+    /**
+     * Check for a new issue and retrieve it.
+     * <p>
+     * This runs every minute but the capabilities are only polled when the {@link IssueSchedule} expects a new issue, or when a previous
+     * retrieval failed.
+     * <p>
+     * A new issue is staged: every region is retrieved before the issue is published so clients keep seeing the previous issue until the new
+     * one is complete.
+     * <p>
+     * If another node is the {@link ClusterCoordinator} leader then we don't call DataPoint but follow the manifest it writes instead.
+     *
+     * @throws IOException        on failure
+     * @throws URISyntaxException on failure
+     */
+    @Cron("0 * * * * ? *")
     public void reload()
             throws IOException,
                    URISyntaxException
     {
-        LocalDateTime now = LocalDateTime.now();
-        if( lastReload == null || Duration.between( lastReload, now ).getSeconds() > 21600 ) {
-
-            JsonObject obj = dataPoint.call( "txt/wxfcs/regionalforecast", "capabilities" ).getJsonObject( "RegionalFcst" );
-            LocalDateTime issuedAt = JsonUtils.getLocalDateTime( obj, "issuedAt" );
-
-            if( locationsById == null ) {
-                locationsById = dataPoint.call( "txt/wxfcs/regionalforecast", "sitelist" )
-                        .getJsonObject( "Locations" )
-                        .getJsonArray( "Location" )
-                        .stream()
-                        .map( Functions.castTo( JsonObject.class ) )
-                        .filter( Objects::nonNull )
-                        .collect( Collectors.toConcurrentMap( o -> Integer.parseInt( o.getString( "@id" ) ),
-                                                              o -> o.getString( "@name" ) ) );
-
-                locationsByName = locationsById.entrySet()
-                        .stream()
-                        .collect( Collectors.toConcurrentMap( Map.Entry::getValue, Map.Entry::getKey ) );
+        // Never run more than one reload at a time
+        if( !reloading.compareAndSet( false, true ) ) {
+            reloadsCoalesced.incrementAndGet();
+            LOG.log( Level.FINE, "Reload already in progress" );
+            return;
+        }
+
+        ReloadEvent event = ReloadEvent.start( NAME );
+        try {
+            // Issue times are UTC
+            LocalDateTime now = LocalDateTime.now( ZoneOffset.UTC );
+            boolean leader = clusterCoordinator.isLeader();
+            event.setLeader( leader );
+            if( !leader ) {
+                follow( now );
+                return;
             }
 
-            for( Map.Entry<Integer, String> e: locationsById.entrySet() ) {
+            if( schedule.shouldPoll( now ) ) {
+                event.setPolled( true );
+
+                JsonObject obj;
                 try {
-                    Path path = dataPoint.getPath( "txt/wxfcs/regionalforecast", issuedAt.toString(), e.getValue() + ".json" );
+                    obj = dataPoint.call( PREFIX, "capabilities" ).getJsonObject( "RegionalFcst" );
+                }
+                catch( IOException |
+                       URISyntaxException |
+                       RuntimeException ex ) {
+                    // Back off rather than polling every few minutes during an outage
+                    schedule.retry( now );
+                    throw ex;
+                }
+                LocalDateTime issuedAt = JsonUtils.getLocalDateTime( obj, "issuedAt" );
+                event.setIssue( issuedAt );
+
+                if( !schedule.isRetrying() && !schedule.isNew( issuedAt ) ) {
+                    schedule.unchanged( now );
+                    return;
+                }
+                schedule.issued( issuedAt, now );
+
+                if( locationsById == null ) {
+                    setLocations( dataPoint.call( PREFIX, "sitelist" )
+                            .getJsonObject( "Locations" )
+                            .getJsonArray( "Location" )
+                            .stream()
+                            .map( Functions.castTo( JsonObject.class ) )
+                            .filter( Objects::nonNull )
+                            .collect( Collectors.toConcurrentMap( o -> Integer.parseInt( o.getString( "@id" ) ),
+                                                                  o -> o.getString( "@name" ) ) ) );
+                }
+
+                staging = issuedAt;
+                Map<Integer, JsonObject> staged = new ConcurrentHashMap<>();
+                int failures = load( issuedAt, true, staged );
+                event.setItems( locationsById.size() ).setFailures( failures );
+
+                // Let any followers know before we switch
+                if( failures == 0 ) {
+                    writeManifest( issuedAt );
+                }
+                switchTo( issuedAt, staged, failures );
+
+                // If anything failed retry shortly. Regions already in the cache will not be retrieved again
+                if( failures == 0 ) {
+                    staging = null;
+                    schedule.completed();
+                    lastReload = now;
+                }
+                else {
+                    schedule.retry( now );
+                    LOG.log( Level.WARNING, failures + " regions failed, will retry" );
+                }
+            }
+        }
+        finally {
+            reloading.set( false );
+            event.finish();
+        }
+    }
+
+    private void setLocations( Map<Integer, String> locations )
+    {
+        locationsByName = locations.entrySet()
+                .stream()
+                .collect( Collectors.toConcurrentMap( Map.Entry::getValue, Map.Entry::getKey ) );
+        locationsById = locations;
+    }
+
+    /**
+     * Publish a staged issue. An incomplete issue is only published if there is no previous issue to serve, or it is the one being served
+     * and so has at least as many regions.
+     *
+     * @param issuedAt issue
+     * @param staged   forecasts of the issue
+     * @param failures number of regions missing from staged
+     */
+    private void switchTo( LocalDateTime issuedAt, Map<Integer, JsonObject> staged, int failures )
+    {
+        if( failures == 0 || this.issuedAt == null || issuedAt.equals( this.issuedAt ) ) {
+            forecasts = staged;
+            startup.ready( NAME );
+            if( !issuedAt.equals( this.issuedAt ) ) {
+                this.issuedAt = issuedAt;
+                updateFeed.publish( "regionalforecast", null, issuedAt.toString() );
+            }
+        }
+    }
+
+    /**
+     * Load the forecast of every region for an issue
+     *
+     * @param issuedAt issue
+     * @param retrieve true to retrieve regions not in the cache from DataPoint, false to only read the cache
+     * @param staged   map to add the forecasts to
+     *
+     * @return number of regions that failed
+     *
+     * @throws URISyntaxException on failure
+     */
+    private int load( LocalDateTime issuedAt, boolean retrieve, Map<Integer, JsonObject> staged )
+            throws URISyntaxException
+    {
+        int failures = 0;
+        for( Map.Entry<Integer, String> e: locationsById.entrySet() ) {
+            try {
+                Path path = dataPoint.getPath( PREFIX, issuedAt.toString(), e.getValue() + ".json" );
 
-                    if( Files.exists( path, LinkOption.NOFOLLOW_LINKS ) ) {
-                        // Read from the cache
-                        try( JsonReader r = Json.createReader( Files.newBufferedReader( path ) ) ) {
-                            forecasts.put( e.getKey(), r.readObject() );
-                        }
+                JsonObject forecast = null;
+                if( CacheFiles.isValid( path ) ) {
+                    // Read from the cache
+                    try {
+                        forecast = JsonSnapshot.read( path );
                     }
-                    else {
-                        // Retrieve the new forecast and store in the cache
-                        obj = dataPoint.call( "txt/wxfcs/regionalforecast", e.getKey().toString() );
-
-                        // Store the result
-                        try( OutputStream os = Files.newOutputStream( path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.WRITE ) ) {
-                            try( JsonWriter w = Json.createWriter( os ) ) {
-                                w.writeObject( obj );
-                            }
-                        }
-
-                        forecasts.put( e.getKey(), obj );
+                    catch( JsonException ex ) {
+                        LOG.log( Level.WARNING, ex, () -> "Corrupt " + path + ", retrieving again" );
                     }
                 }
-                catch( IOException ex ) {
-                    LOG.log( Level.SEVERE, "Failed to get " + issuedAt + " " + e.getValue(), ex );
+
+                if( forecast == null && !retrieve ) {
+                    LOG.log( Level.WARNING, () -> "Missing " + path );
+                    failures++;
+                    continue;
                 }
+
+                if( forecast == null ) {
+                    // Retrieve the new forecast and store in the cache
+                    forecast = dataPoint.call( PREFIX, e.getKey().toString() );
+
+                    // Store the result
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    try( JsonWriter w = Json.createWriter( os ) ) {
+                        w.writeObject( forecast );
+                    }
+                    CacheFiles.write( path, os.toByteArray() );
+
+                    try {
+                        JsonSnapshot.write( path, forecast );
+                    }
+                    catch( IOException ex ) {
+                        // Not fatal, it will be rebuilt when next read
+                        LOG.log( Level.WARNING, ex, () -> "Failed to write snapshot of " + path );
+                    }
+                }
+
+                staged.put( e.getKey(), forecast );
             }
+            catch( IOException ex ) {
+                LOG.log( Level.SEVERE, "Failed to get " + issuedAt + " " + e.getValue(), ex );
+                failures++;
+            }
+        }
+        return failures;
+    }
 
+    /**
+     * Let any followers know we have a complete issue
+     *
+     * @param issuedAt issue
+     */
+    private void writeManifest( LocalDateTime issuedAt )
+    {
+        JsonObjectBuilder locations = Json.createObjectBuilder();
+        locationsById.forEach( ( id, name ) -> locations.add( id.toString(), name ) );
+        try {
+            clusterCoordinator.writeManifest( MANIFEST, Json.createObjectBuilder()
+                                              .add( "issuedAt", issuedAt.toString() )
+                                              .add( "locations", locations )
+                                              .add( "schedule", schedule.getHistory() ) );
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.SEVERE, "Failed to write manifest", ex );
+        }
+    }
+
+    /**
+     * Refresh the forecasts from the leader's manifest. The forecasts are already in the shared cache so there's nothing to retrieve.
+     *
+     * @param now current time
+     *
+     * @throws URISyntaxException on failure
+     */
+    private void follow( LocalDateTime now )
+            throws URISyntaxException
+    {
+        if( readManifest() ) {
             lastReload = now;
         }
     }
 
+    /**
+     * Switch to the issue in the manifest if it has changed since we last read or wrote it
+     *
+     * @return true if the manifest was read
+     *
+     * @throws URISyntaxException on failure
+     */
+    private boolean readManifest()
+            throws URISyntaxException
+    {
+        JsonObject manifest = clusterCoordinator.readManifest( MANIFEST );
+        if( manifest == null ) {
+            return false;
+        }
+
+        schedule.setHistory( manifest.getJsonObject( "schedule" ) );
+
+        if( locationsById == null ) {
+            setLocations( manifest.getJsonObject( "locations" )
+                    .entrySet()
+                    .stream()
+                    .collect( Collectors.toConcurrentMap( e -> Integer.parseInt( e.getKey() ),
+                                                          e -> ((JsonString) e.getValue()).getString() ) ) );
+        }
+
+        LocalDateTime issuedAt = LocalDateTime.parse( manifest.getString( "issuedAt" ) );
+        Map<Integer, JsonObject> staged = new ConcurrentHashMap<>();
+        int failures = load( issuedAt, false, staged );
+        switchTo( issuedAt, staged, failures );
+
+        if( failures > 0 ) {
+            LOG.log( Level.WARNING, () -> failures + " regions missing from " + issuedAt );
+        }
+        return true;
+    }
+
+    public void status( @Observes Status status )
+    {
+        JsonObjectBuilder b = Json.createObjectBuilder()
+                .add( "reloading", reloading.get() )
+                .add( "reloadsCoalesced", reloadsCoalesced.get() )
+                .add( "forecasts", forecasts.size() );
+        JsonUtils.add( b, "lastReload", lastReload );
+        JsonUtils.add( b, "issuedAt", issuedAt );
+        b.add( "schedule", schedule.toJson() );
+        status.add( NAME, b );
+    }
+
 }
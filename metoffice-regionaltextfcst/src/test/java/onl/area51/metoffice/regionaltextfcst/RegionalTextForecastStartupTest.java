@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.metoffice.regionaltextfcst;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonWriter;
+import onl.area51.metoffice.BackgroundExecutor;
+import onl.area51.metoffice.CacheRetention;
+import onl.area51.metoffice.ClusterCoordinator;
+import onl.area51.metoffice.DataPoint;
+import onl.area51.metoffice.RetentionPolicy;
+import onl.area51.metoffice.Startup;
+import onl.area51.metoffice.UpdateFeed;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Starts a {@link RegionalTextForecastService} against a cache holding a previous issue, the way it starts after a restart, whilst DataPoint
+ * does not answer. The first request must be served from the cache long before the background reload finishes.
+ *
+ * @author peter
+ */
+public class RegionalTextForecastStartupTest
+{
+
+    private static final long MAX_TIME_TO_FIRST_REQUEST = 1000;
+
+    private static final String PREFIX = "txt/wxfcs/regionalforecast";
+    private static final String ISSUED_AT = "2016-04-11T16:00";
+
+    private Path cache;
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Counted down when the reload calls DataPoint
+     */
+    private final CountDownLatch called = new CountDownLatch( 1 );
+
+    /**
+     * DataPoint doesn't answer until this is counted down
+     */
+    private final CountDownLatch answer = new CountDownLatch( 1 );
+
+    private Startup startup;
+    private RegionalTextForecastService service;
+    private RegionalTextForecastBatch batch;
+
+    @Before
+    public void setUp()
+            throws Exception
+    {
+        cache = Files.createTempDirectory( "cache" );
+        executor = new ScheduledThreadPoolExecutor( 2 );
+
+        DataPoint dataPoint = new SlowDataPoint();
+
+        // The previous issue as left by the last run
+        Files.createDirectories( dataPoint.getPath( "cluster" ) );
+        seed( dataPoint, "514", "os" );
+        seed( dataPoint, "500", "uk" );
+        ClusterCoordinator previous = createCoordinator( dataPoint, "previous" );
+        previous.writeManifest( "regionalTextForecast", Json.createObjectBuilder()
+                                .add( "issuedAt", ISSUED_AT )
+                                .add( "locations", Json.createObjectBuilder().add( "514", "os" ).add( "500", "uk" ) ) );
+
+        BackgroundExecutor backgroundExecutor = new BackgroundExecutor();
+        inject( backgroundExecutor, "executor", executor );
+
+        startup = new Startup();
+        invoke( startup, "setExpected", 1 );
+
+        service = new RegionalTextForecastService();
+        inject( service, "dataPoint", dataPoint );
+        inject( service, "cacheRetention", new CacheRetention()
+        {
+            @Override
+            public void register( RetentionPolicy policy )
+            {
+            }
+        } );
+        inject( service, "updateFeed", new UpdateFeed()
+        {
+            @Override
+            public void publish( String type, String name, String value )
+            {
+            }
+        } );
+        inject( service, "clusterCoordinator", createCoordinator( dataPoint, "test" ) );
+        inject( service, "backgroundExecutor", backgroundExecutor );
+        inject( service, "startup", startup );
+
+        batch = new RegionalTextForecastBatch();
+        inject( batch, "regionalTextForecastService", service );
+    }
+
+    @After
+    public void tearDown()
+            throws IOException
+    {
+        answer.countDown();
+        executor.shutdownNow();
+        try( Stream<Path> s = Files.walk( cache ) ) {
+            s.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+        }
+    }
+
+    /**
+     * Time from the container creating the service to it serving the first request from the cache whilst the reload is still waiting for
+     * DataPoint. If start waited for the reload it would never return so this times out rather than hanging.
+     *
+     * @throws Exception on failure
+     */
+    @Test(timeout = 5000)
+    public void timeToFirstServedRequest()
+            throws Exception
+    {
+        long start = System.nanoTime();
+
+        invoke( service, "start" );
+        JsonObject forecast = batch.getItem( "514" );
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+
+        // Served from the cache and reported ready, i.e. health.json returns 200
+        assertNotNull( forecast );
+        assertEquals( "os", forecast.getString( "region" ) );
+        assertEquals( ISSUED_AT, batch.getVersion( "os" ) );
+        assertTrue( startup.isReady() );
+        assertTrue( "First request served after " + elapsed + "ms", elapsed < MAX_TIME_TO_FIRST_REQUEST );
+
+        // The reload is running but hasn't finished
+        assertTrue( called.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( 1, executor.getActiveCount() );
+    }
+
+    /**
+     * With nothing in the cache there's nothing to serve until the reload has finished
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void notReadyWithoutCache()
+            throws Exception
+    {
+        Files.delete( cache.resolve( "cluster" ).resolve( "regionalTextForecast.manifest.json" ) );
+
+        invoke( service, "start" );
+
+        assertTrue( called.await( 5, TimeUnit.SECONDS ) );
+        assertFalse( startup.isReady() );
+        assertNull( batch.getItem( "514" ) );
+    }
+
+    private void seed( DataPoint dataPoint, String id, String name )
+            throws IOException
+    {
+        Path path = dataPoint.getPath( PREFIX, ISSUED_AT, name + ".json" );
+        Files.createDirectories( path.getParent() );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try( JsonWriter w = Json.createWriter( os ) ) {
+            w.writeObject( Json.createObjectBuilder().add( "id", id ).add( "region", name ).build() );
+        }
+        Files.write( path, os.toByteArray() );
+    }
+
+    private ClusterCoordinator createCoordinator( DataPoint dataPoint, String nodeId )
+            throws Exception
+    {
+        ClusterCoordinator c = new ClusterCoordinator();
+        Method m = ClusterCoordinator.class.getDeclaredMethod( "configure", boolean.class, String.class, long.class, long.class,
+                                                               java.util.function.Function.class );
+        m.setAccessible( true );
+        m.invoke( c, false, nodeId, 60000L, 0L, (java.util.function.Function<String, Path>) name -> dataPoint.getPath( "cluster", name ) );
+        return c;
+    }
+
+    private static void inject( Object target, String name, Object value )
+            throws ReflectiveOperationException
+    {
+        Field f = target.getClass().getDeclaredField( name );
+        f.setAccessible( true );
+        f.set( target, value );
+    }
+
+    private static void invoke( Object target, String name, Object... args )
+            throws ReflectiveOperationException
+    {
+        for( Method m: target.getClass().getDeclaredMethods() ) {
+            if( m.getName().equals( name ) && m.getParameterCount() == args.length ) {
+                m.setAccessible( true );
+                m.invoke( target, args );
+                return;
+            }
+        }
+        throw new NoSuchMethodException( name );
+    }
+
+    /**
+     * DataPoint with the cache in a local directory that doesn't answer any call until the test has finished
+     */
+    private class SlowDataPoint
+            extends DataPoint
+    {
+
+        @Override
+        public Path getPath( String first, String... more )
+        {
+            Path p = cache.resolve( first );
+            for( String m: more ) {
+                p = p.resolve( m );
+            }
+            return p;
+        }
+
+        @Override
+        public JsonObject call( String service, String function, Map<String, Object> queryParams )
+                throws IOException,
+                       URISyntaxException
+        {
+            called.countDown();
+            try {
+                answer.await();
+            }
+            catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException( "DataPoint unavailable" );
+        }
+    }
+}